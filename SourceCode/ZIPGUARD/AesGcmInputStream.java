@@ -0,0 +1,126 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.*;
+
+// InputStream that decrypts and authenticates the AesUtils segmented AES-GCM format one segment at a
+// time. Reads up to the end of the last segment; end of stream is reported only after the final
+// segment has been authenticated, so truncation is always detected.
+final class AesGcmInputStream extends InputStream {
+    private final InputStream in;
+    private final SecretKey streamKey;
+    private final byte[] associatedData;
+    private final byte[] noncePrefix;
+    private byte[] current;
+    private byte[] next;
+    private int currentLength;
+    private byte[] plaintext;
+    private int position;
+    private int limit;
+    private int index;
+    private boolean started;
+    private boolean finished;
+
+    AesGcmInputStream(InputStream in, SecretKey secretKey, byte[] associatedData) throws IOException, GeneralSecurityException {
+        this.in = in;
+        byte[] header = in.readNBytes(AesUtils.STREAM_HEADER_LENGTH);
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        if (header.length != AesUtils.STREAM_HEADER_LENGTH || fields.getInt(0) != AesUtils.STREAM_MAGIC) {
+            throw new IOException("Not a ZipGuard AES stream");
+        }
+        int segmentSize = fields.getInt(4);
+        if (segmentSize <= 0 || segmentSize > AesUtils.MAX_SEGMENT_SIZE) {
+            throw new IOException("Corrupt AES stream header");
+        }
+        this.noncePrefix = new byte[AesUtils.NONCE_PREFIX_LENGTH];
+        System.arraycopy(header, 8 + AesUtils.SALT_LENGTH, noncePrefix, 0, AesUtils.NONCE_PREFIX_LENGTH);
+        this.streamKey = AesUtils.streamKey(secretKey, header);
+        this.associatedData = AesGcmOutputStream.concat(associatedData, header);
+        this.current = BufferPool.array(segmentSize + AesUtils.GCM_TAG_LENGTH);
+        this.next = BufferPool.array(segmentSize + AesUtils.GCM_TAG_LENGTH);
+        this.plaintext = BufferPool.array(segmentSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !openSegment()) {
+            return -1;
+        }
+        return plaintext[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !openSegment()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(plaintext, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    // Decrypts the next segment into the plaintext buffer; returns false after the final segment
+    private boolean openSegment() throws IOException {
+        while (!finished) {
+            if (current == null) {
+                throw new IOException("Stream closed");
+            }
+            if (!started) {
+                currentLength = in.readNBytes(current, 0, current.length);
+                started = true;
+            }
+            // A short segment means end of input; a full one is last only if nothing follows it
+            int nextLength = 0;
+            boolean last = currentLength < current.length
+                    || (nextLength = in.readNBytes(next, 0, next.length)) == 0;
+            if (currentLength < AesUtils.GCM_TAG_LENGTH) {
+                throw new EOFException("AES stream is truncated");
+            }
+            try {
+                Cipher cipher = CipherCache.cipher(AesUtils.GCM_TRANSFORMATION);
+                cipher.init(Cipher.DECRYPT_MODE, streamKey, AesUtils.segmentNonce(noncePrefix, index, last));
+                cipher.updateAAD(associatedData);
+                limit = cipher.doFinal(current, 0, currentLength, plaintext, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM segment " + index + " failed authentication", e);
+            }
+            position = 0;
+            index++;
+            finished = last;
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+            if (limit > 0) {
+                return true;
+            }
+        }
+        releaseBuffers();
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseBuffers();
+        in.close();
+    }
+
+    // Everything has been read once the final segment is used up, so the buffers can go back to the pool
+    private void releaseBuffers() {
+        BufferPool.release(current);
+        BufferPool.release(next);
+        BufferPool.release(plaintext);
+        current = null;
+        next = null;
+        plaintext = null;
+        position = 0;
+        limit = 0;
+    }
+}
@@ -0,0 +1,128 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.*;
+
+// OutputStream that writes the AesUtils segmented AES-GCM format. A segment is sealed once it is
+// full and more data arrives, and the final segment is sealed by close().
+final class AesGcmOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final SecretKey streamKey;
+    private final byte[] associatedData; // Caller's associated data followed by the stream header
+    private final byte[] noncePrefix;
+    private final byte[] plaintext;
+    private final byte[] ciphertext;
+    private int count;
+    private int index;
+    private boolean closed;
+
+    // associatedData is authenticated with every segment but not written; the reader must supply it too
+    AesGcmOutputStream(OutputStream out, SecretKey secretKey, int segmentSize, byte[] associatedData)
+            throws IOException, GeneralSecurityException {
+        if (segmentSize <= 0 || segmentSize > AesUtils.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + AesUtils.MAX_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        this.out = out;
+        byte[] salt = new byte[AesUtils.SALT_LENGTH];
+        this.noncePrefix = new byte[AesUtils.NONCE_PREFIX_LENGTH];
+        AesUtils.RANDOM.nextBytes(salt);
+        AesUtils.RANDOM.nextBytes(noncePrefix);
+        this.plaintext = BufferPool.array(segmentSize);
+        this.ciphertext = BufferPool.array(segmentSize + AesUtils.GCM_TAG_LENGTH);
+
+        ByteBuffer header = ByteBuffer.allocate(AesUtils.STREAM_HEADER_LENGTH);
+        header.putInt(AesUtils.STREAM_MAGIC).putInt(segmentSize).put(salt).put(noncePrefix);
+        this.streamKey = AesUtils.streamKey(secretKey, header.array());
+        this.associatedData = concat(associatedData, header.array());
+        out.write(header.array());
+    }
+
+    static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == plaintext.length) {
+            seal(false);
+        }
+        plaintext[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == plaintext.length) {
+                seal(false);
+            }
+            int n = Math.min(len, plaintext.length - count);
+            System.arraycopy(b, off, plaintext, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Flushes sealed segments only; the buffered partial segment is sealed by close()
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            seal(true);
+        } finally {
+            BufferPool.release(plaintext);
+            BufferPool.release(ciphertext);
+            out.close();
+        }
+    }
+
+    // Closes the underlying stream without sealing the final segment, for a writer that failed part
+    // way with cause: what was written cannot authenticate as a complete stream. A failure to close
+    // is added to cause rather than thrown over it.
+    void abort(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        BufferPool.release(plaintext);
+        BufferPool.release(ciphertext);
+        try {
+            out.close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private void seal(boolean last) throws IOException {
+        if (closed && !last) {
+            throw new IOException("Stream closed");
+        }
+        if (!last && index == Integer.MAX_VALUE) {
+            throw new IOException("Input has too many segments");
+        }
+        try {
+            Cipher cipher = CipherCache.cipher(AesUtils.GCM_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, streamKey, AesUtils.segmentNonce(noncePrefix, index, last));
+            cipher.updateAAD(associatedData);
+            int length = cipher.doFinal(plaintext, 0, count, ciphertext, 0);
+            out.write(ciphertext, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM segment encryption failed", e);
+        }
+        count = 0;
+        index++;
+    }
+}
@@ -1,59 +1,541 @@
 package ZIPGUARD;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.util.Base64;
-import java.util.Scanner;
 
 public class AesUtils {
 
+    // Plaintext bytes per independently authenticated segment of the streaming format
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Streaming format: header (magic "ZGA1", segment size, salt, nonce prefix), then one AES-GCM
+    // ciphertext + tag per segment. Segments are sealed with a key derived from the caller's key and
+    // the random salt, so every stream has a key of its own and nonces never repeat between streams
+    // that share a key. Each segment's nonce is the prefix, the segment index and a final-segment
+    // flag, so segments cannot be reordered, dropped or truncated undetected.
+    static final int STREAM_MAGIC = 0x5A474131; // "ZGA1"
+    static final int SALT_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int STREAM_HEADER_LENGTH = 8 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    static final int GCM_TAG_LENGTH = 16;
+
+    private static final byte[] STREAM_KEY_INFO = "ZipGuard AES-GCM stream key".getBytes(StandardCharsets.US_ASCII);
+
+    // Segments sealed or opened by one worker task of the parallel file path
+    private static final int SEGMENTS_PER_TASK = 16;
+
+    static final SecureRandom RANDOM = new SecureRandom();
+
+    // Every thread takes its cipher from CipherCache and re-initializes it per segment
+    static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
     // Public method for encryption
     public static void encryptFile(Path inputFile, Path outputFile, Path keyFile) throws Exception {
-        SecretKey secretKey = generateAESKey();
-        byte[] inputData = readFromFile(inputFile);
-        byte[] encryptedData = encryptData(inputData, secretKey);
+        try (OperationTimer timer = Metrics.start(Metrics.AES_ENCRYPT)) {
+            SecretKey secretKey = generateAESKey();
+            timer.phase("key-load");
+
+            // Seal the file's AES-GCM segments in parallel on all cores
+            try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                encryptParallel(in, out, secretKey, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool(), timer);
+            }
 
-        // Write encrypted data and key to files
-        writeToFile(encryptedData, outputFile);
-        String aesKeyPEM = getPEMAESKey(secretKey);
-        writeToFile(aesKeyPEM.getBytes(), keyFile);
+            // Write the key to its file
+            String aesKeyPEM = getPEMAESKey(secretKey);
+            writeToFile(aesKeyPEM.getBytes(), keyFile);
+            timer.phase("write");
+            timer.complete();
+        }
 
         System.out.println("Encryption complete. Encrypted file and AES key saved.");
     }
 
     // Public method for decryption
+    // Segments are written as they authenticate, so the plaintext goes to a temporary file that is
+    // moved into place only once every segment has, and a failure never leaves partial plaintext
     public static void decryptFile(Path inputFile, Path outputFile, Path keyFile) throws Exception {
-        SecretKey secretKey = readAESKeyFromFile(keyFile);
-        byte[] encryptedData = readFromFile(inputFile);
-        byte[] decryptedData = decryptData(encryptedData, secretKey);
+        try (OperationTimer timer = Metrics.start(Metrics.AES_DECRYPT);
+             FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            SecretKey secretKey = readAESKeyFromFile(keyFile);
+            timer.phase("key-load");
 
-        // Write decrypted data to the output file
-        writeToFile(decryptedData, outputFile);
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            IoUtils.readFully(in, magic);
+            in.position(0);
+
+            Path directory = outputFile.toAbsolutePath().getParent();
+            Path temporary = Files.createTempFile(directory, outputFile.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                    if (magic.position() == 4 && magic.getInt(0) == STREAM_MAGIC) {
+                        decryptParallel(in, out, secretKey, ForkJoinPool.commonPool(), timer);
+                    } else {
+                        // Files written before the streaming format are a single AES/ECB block
+                        decryptLegacyFile(in, out, secretKey);
+                        timer.phase("cipher");
+                        timer.addBytesIn(in.size());
+                        timer.addBytesOut(out.size());
+                    }
+                }
+                Files.move(temporary, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            timer.complete();
+        }
         System.out.println("Decryption complete. Decrypted file saved.");
     }
 
-    // Private method to generate AES key
-    private static SecretKey generateAESKey() throws NoSuchAlgorithmException {
-        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-        keyGenerator.init(256);
-        return keyGenerator.generateKey();
+    // Encrypts everything readable from in as segmented AES-GCM. Memory use is two plaintext
+    // segments and one ciphertext segment, however long the input is.
+    public static void encryptStream(ReadableByteChannel in, WritableByteChannel out, SecretKey secretKey, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.AES_ENCRYPT)) {
+            encryptSegments(timer.timeReads(in), timer.timeWrites(out), secretKey, segmentSize);
+            timer.phase("cipher");
+            timer.addBytesIn(timer.bytesRead());
+            timer.complete();
+        }
+    }
+
+    private static void encryptSegments(ReadableByteChannel in, WritableByteChannel out, SecretKey secretKey, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_LENGTH);
+        header.putInt(STREAM_MAGIC).putInt(segmentSize).put(salt).put(noncePrefix).flip();
+        byte[] headerBytes = header.array();
+        SecretKey streamKey = streamKey(secretKey, headerBytes);
+        IoUtils.writeFully(out, header);
+
+        Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+        ByteBuffer current = BufferPool.direct(segmentSize);
+        ByteBuffer next = BufferPool.direct(segmentSize);
+        ByteBuffer encrypted = BufferPool.direct(segmentSize + GCM_TAG_LENGTH);
+        try {
+            IoUtils.readFully(in, current);
+            for (int index = 0; ; index++) {
+                // A short segment means end of input; a full one is last only if nothing follows it
+                boolean last = current.hasRemaining() || IoUtils.readFully(in, next) == 0;
+                current.flip();
+                cipher.init(Cipher.ENCRYPT_MODE, streamKey, segmentNonce(noncePrefix, index, last));
+                cipher.updateAAD(headerBytes);
+                encrypted.clear();
+                cipher.doFinal(current, encrypted);
+                encrypted.flip();
+                IoUtils.writeFully(out, encrypted);
+                if (last) {
+                    return;
+                }
+                if (index == Integer.MAX_VALUE) {
+                    throw new IOException("Input has too many segments");
+                }
+
+                ByteBuffer swap = current;
+                current = next;
+                next = swap;
+                next.clear();
+            }
+        } finally {
+            BufferPool.release(current);
+            BufferPool.release(next);
+            BufferPool.release(encrypted);
+        }
     }
 
-    // Private method to encrypt data
-    private static byte[] encryptData(byte[] data, SecretKey secretKey) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return cipher.doFinal(data);
+    // Decrypts and authenticates a stream written by encryptStream, one segment at a time
+    public static void decryptStream(ReadableByteChannel in, WritableByteChannel out, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.AES_DECRYPT)) {
+            decryptSegments(timer.timeReads(in), timer.timeWrites(out), secretKey);
+            timer.phase("cipher");
+            timer.addBytesIn(timer.bytesRead());
+            timer.complete();
+        }
     }
 
-    // Private method to decrypt data
-    private static byte[] decryptData(byte[] encryptedData, SecretKey secretKey) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES");
+    // Authenticates every segment of a stream written by encryptStream without keeping the plaintext
+    static void authenticateStream(ReadableByteChannel in, SecretKey secretKey) throws IOException, GeneralSecurityException {
+        decryptSegments(in, null, secretKey);
+    }
+
+    // Parallel counterpart of authenticateStream for a file in the segmented format
+    static void authenticateParallel(FileChannel in, SecretKey secretKey, OperationTimer timer)
+            throws IOException, GeneralSecurityException {
+        decryptParallel(in, null, secretKey, ForkJoinPool.commonPool(), timer);
+    }
+
+    // A null out authenticates the stream and discards the plaintext
+    private static void decryptSegments(ReadableByteChannel in, WritableByteChannel out, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_LENGTH);
+        if (IoUtils.readFully(in, header) != STREAM_HEADER_LENGTH || header.getInt(0) != STREAM_MAGIC) {
+            throw new IOException("Not a ZipGuard AES stream");
+        }
+        int segmentSize = header.getInt(4);
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Corrupt AES stream header");
+        }
+        byte[] headerBytes = header.array();
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        System.arraycopy(headerBytes, 8 + SALT_LENGTH, noncePrefix, 0, NONCE_PREFIX_LENGTH);
+        SecretKey streamKey = streamKey(secretKey, headerBytes);
+
+        Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+        ByteBuffer current = BufferPool.direct(segmentSize + GCM_TAG_LENGTH);
+        ByteBuffer next = BufferPool.direct(segmentSize + GCM_TAG_LENGTH);
+        ByteBuffer decrypted = BufferPool.direct(segmentSize);
+        try {
+            IoUtils.readFully(in, current);
+            for (int index = 0; ; index++) {
+                boolean last = current.hasRemaining() || IoUtils.readFully(in, next) == 0;
+                current.flip();
+                if (current.remaining() < GCM_TAG_LENGTH) {
+                    throw new EOFException("AES stream is truncated");
+                }
+                cipher.init(Cipher.DECRYPT_MODE, streamKey, segmentNonce(noncePrefix, index, last));
+                cipher.updateAAD(headerBytes);
+                decrypted.clear();
+                cipher.doFinal(current, decrypted);
+                decrypted.flip();
+                if (out != null) {
+                    IoUtils.writeFully(out, decrypted);
+                }
+                if (last) {
+                    return;
+                }
+                if (index == Integer.MAX_VALUE) {
+                    throw new IOException("Input has too many segments");
+                }
+
+                ByteBuffer swap = current;
+                current = next;
+                next = swap;
+                next.clear();
+            }
+        } finally {
+            BufferPool.release(current);
+            BufferPool.release(next);
+            BufferPool.release(decrypted);
+        }
+    }
+
+    // Produces the same format as encryptStream, but seals the segments of a file on the worker pool.
+    // Segments are sealed straight from a memory mapping of the input and written at their own
+    // offsets, so neither the file nor the output order goes through the heap or any coordination.
+    public static void encryptParallel(FileChannel in, FileChannel out, SecretKey secretKey, int segmentSize,
+                                       ExecutorService pool) throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.AES_ENCRYPT)) {
+            encryptParallel(in, out, secretKey, segmentSize, pool, timer);
+            timer.complete();
+        }
+    }
+
+    // Workers do their own positional I/O, so read and write time is part of the "cipher" phase here
+    private static void encryptParallel(FileChannel in, FileChannel out, SecretKey secretKey, int segmentSize,
+                                        ExecutorService pool, OperationTimer timer)
+            throws IOException, GeneralSecurityException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_LENGTH);
+        header.putInt(STREAM_MAGIC).putInt(segmentSize).put(salt).put(noncePrefix).flip();
+        byte[] headerBytes = header.array();
+        SecretKey streamKey = streamKey(secretKey, headerBytes);
+        IoUtils.writeFully(out, header, 0);
+
+        MappedFile mapped = new MappedFile(in);
+        long plaintextLength = mapped.size();
+        long segmentCount = Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+        if (segmentCount > Integer.MAX_VALUE) {
+            throw new IOException("Input has too many segments");
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (long first = 0; first < segmentCount; first += SEGMENTS_PER_TASK) {
+            int firstSegment = (int) first;
+            int endSegment = (int) Math.min(first + SEGMENTS_PER_TASK, segmentCount);
+            tasks.add(() -> {
+                Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+                ByteBuffer ciphertext = BufferPool.direct(segmentSize + GCM_TAG_LENGTH);
+                try {
+                    for (int index = firstSegment; index < endSegment; index++) {
+                        long position = (long) index * segmentSize;
+                        int length = (int) Math.min(segmentSize, plaintextLength - position);
+                        ByteBuffer plaintext = mapped.slice(position, length);
+
+                        cipher.init(Cipher.ENCRYPT_MODE, streamKey, segmentNonce(noncePrefix, index, index == segmentCount - 1));
+                        cipher.updateAAD(headerBytes);
+                        ciphertext.clear().limit(length + GCM_TAG_LENGTH);
+                        cipher.doFinal(plaintext, ciphertext);
+                        ciphertext.flip();
+                        IoUtils.writeFully(out, ciphertext, STREAM_HEADER_LENGTH + (long) index * (segmentSize + GCM_TAG_LENGTH));
+                    }
+                } finally {
+                    BufferPool.release(ciphertext);
+                }
+                return null;
+            });
+        }
+        runSegmentTasks(pool, tasks);
+        timer.phase("cipher");
+        timer.addBytesIn(plaintextLength);
+        timer.addBytesOut(STREAM_HEADER_LENGTH + plaintextLength + segmentCount * GCM_TAG_LENGTH);
+    }
+
+    // Parallel counterpart of decryptStream for a file written in the segmented format
+    public static void decryptParallel(FileChannel in, FileChannel out, SecretKey secretKey, ExecutorService pool)
+            throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.AES_DECRYPT)) {
+            decryptParallel(in, out, secretKey, pool, timer);
+            timer.complete();
+        }
+    }
+
+    // As with decryptSegments, a null out only authenticates
+    private static void decryptParallel(FileChannel in, FileChannel out, SecretKey secretKey, ExecutorService pool,
+                                        OperationTimer timer) throws IOException, GeneralSecurityException {
+        if (in.size() < STREAM_HEADER_LENGTH) {
+            throw new IOException("Not a ZipGuard AES stream");
+        }
+        byte[] headerBytes = IoUtils.readFully(in, 0, STREAM_HEADER_LENGTH);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        int segmentSize = header.getInt(4);
+        if (header.getInt(0) != STREAM_MAGIC || segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Not a ZipGuard AES stream");
+        }
+        byte[] noncePrefix = Arrays.copyOfRange(headerBytes, 8 + SALT_LENGTH, STREAM_HEADER_LENGTH);
+        SecretKey streamKey = streamKey(secretKey, headerBytes);
+
+        MappedFile mapped = new MappedFile(in);
+        long ciphertextLength = mapped.size() - STREAM_HEADER_LENGTH;
+        int sealedSegmentSize = segmentSize + GCM_TAG_LENGTH;
+        long segmentCount = Math.max(1, (ciphertextLength + sealedSegmentSize - 1) / sealedSegmentSize);
+        if (ciphertextLength - (segmentCount - 1) * sealedSegmentSize < GCM_TAG_LENGTH) {
+            throw new EOFException("AES stream is truncated");
+        }
+        if (segmentCount > Integer.MAX_VALUE) {
+            throw new IOException("Input has too many segments");
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (long first = 0; first < segmentCount; first += SEGMENTS_PER_TASK) {
+            int firstSegment = (int) first;
+            int endSegment = (int) Math.min(first + SEGMENTS_PER_TASK, segmentCount);
+            tasks.add(() -> {
+                Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+                ByteBuffer plaintext = BufferPool.direct(segmentSize);
+                try {
+                    for (int index = firstSegment; index < endSegment; index++) {
+                        long position = STREAM_HEADER_LENGTH + (long) index * sealedSegmentSize;
+                        int length = (int) Math.min(sealedSegmentSize, STREAM_HEADER_LENGTH + ciphertextLength - position);
+                        ByteBuffer ciphertext = mapped.slice(position, length);
+
+                        cipher.init(Cipher.DECRYPT_MODE, streamKey, segmentNonce(noncePrefix, index, index == segmentCount - 1));
+                        cipher.updateAAD(headerBytes);
+                        plaintext.clear().limit(length - GCM_TAG_LENGTH);
+                        cipher.doFinal(ciphertext, plaintext);
+                        plaintext.flip();
+                        if (out != null) {
+                            IoUtils.writeFully(out, plaintext, (long) index * segmentSize);
+                        }
+                    }
+                } finally {
+                    BufferPool.release(plaintext);
+                }
+                return null;
+            });
+        }
+        runSegmentTasks(pool, tasks);
+        timer.phase("cipher");
+        timer.addBytesIn(STREAM_HEADER_LENGTH + ciphertextLength);
+        if (out != null) {
+            timer.addBytesOut(ciphertextLength - segmentCount * GCM_TAG_LENGTH);
+        }
+    }
+
+    private static void runSegmentTasks(ExecutorService pool, List<Callable<Void>> tasks)
+            throws IOException, GeneralSecurityException {
+        try {
+            IoUtils.invokeAll(pool, tasks);
+        } catch (IOException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause(); // For example a failed authentication tag
+            }
+            throw e;
+        }
+    }
+
+    // Seals (ENCRYPT_MODE) or opens (DECRYPT_MODE) one segment of the streaming format on this
+    // thread's cipher. associatedData ends with the stream header and streamKey is the key derived from
+    // that header by streamKey(SecretKey, byte[]); the result is a new heap buffer.
+    static ByteBuffer cipherSegment(int mode, SecretKey streamKey, byte[] associatedData, int index, boolean last,
+                                    ByteBuffer input) throws GeneralSecurityException, IOException {
+        if (mode == Cipher.DECRYPT_MODE && input.remaining() < GCM_TAG_LENGTH) {
+            throw new EOFException("AES stream is truncated");
+        }
+        byte[] noncePrefix = Arrays.copyOfRange(associatedData, associatedData.length - NONCE_PREFIX_LENGTH,
+                associatedData.length);
+        Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+        cipher.init(mode, streamKey, segmentNonce(noncePrefix, index, last));
+        cipher.updateAAD(associatedData);
+        ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(input.remaining()));
+        cipher.doFinal(input, output);
+        return output.flip();
+    }
+
+    static GCMParameterSpec segmentNonce(byte[] noncePrefix, int index, boolean last) {
+        byte[] nonce = new byte[NONCE_PREFIX_LENGTH + 5];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+        nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce);
+    }
+
+    // The key a stream's segments are sealed with: HKDF-SHA256 (RFC 5869) of secretKey with the salt
+    // from the stream header, cut to secretKey's length, so one block of expand output is enough
+    static SecretKey streamKey(SecretKey secretKey, byte[] header) throws GeneralSecurityException {
+        byte[] inputKey = secretKey.getEncoded();
+        if (inputKey == null || inputKey.length > 32) {
+            throw new InvalidKeyException("Not an AES key");
+        }
+        Mac mac = CipherCache.mac("HmacSHA256");
+        mac.init(new SecretKeySpec(header, 8, SALT_LENGTH, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        mac.update(STREAM_KEY_INFO);
+        mac.update((byte) 1);
+        return new SecretKeySpec(mac.doFinal(), 0, inputKey.length, "AES");
+    }
+
+    // Generates a random 256-bit AES key
+    static SecretKey generateAESKey() throws NoSuchAlgorithmException {
+        return CipherCache.generateKey("AES", 256);
+    }
+
+    // Encrypts data in memory, in the same segmented format as encryptFile. Segments are sealed
+    // straight from data into the result, so the result is the only sizeable allocation.
+    public static byte[] encryptData(byte[] data, SecretKey secretKey) throws GeneralSecurityException, IOException {
+        try (OperationTimer timer = Metrics.start(Metrics.AES_ENCRYPT)) {
+            int segmentCount = Math.max(1, (int) (((long) data.length + DEFAULT_SEGMENT_SIZE - 1) / DEFAULT_SEGMENT_SIZE));
+            long length = STREAM_HEADER_LENGTH + (long) data.length + (long) segmentCount * GCM_TAG_LENGTH;
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Data is too large to encrypt in memory: " + data.length + " bytes");
+            }
+            byte[] encrypted = new byte[(int) length];
+            byte[] salt = new byte[SALT_LENGTH];
+            RANDOM.nextBytes(salt);
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            RANDOM.nextBytes(noncePrefix);
+            ByteBuffer.wrap(encrypted).putInt(STREAM_MAGIC).putInt(DEFAULT_SEGMENT_SIZE).put(salt).put(noncePrefix);
+            SecretKey streamKey = streamKey(secretKey, encrypted);
+
+            Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+            int output = STREAM_HEADER_LENGTH;
+            for (int index = 0; index < segmentCount; index++) {
+                int position = index * DEFAULT_SEGMENT_SIZE;
+                cipher.init(Cipher.ENCRYPT_MODE, streamKey, segmentNonce(noncePrefix, index, index == segmentCount - 1));
+                cipher.updateAAD(encrypted, 0, STREAM_HEADER_LENGTH);
+                output += cipher.doFinal(data, position, Math.min(DEFAULT_SEGMENT_SIZE, data.length - position), encrypted, output);
+            }
+            timer.phase("cipher");
+            timer.addBytesIn(data.length);
+            timer.addBytesOut(encrypted.length);
+            timer.complete();
+            return encrypted;
+        }
+    }
+
+    // Decrypts data produced by encryptData, or any other stream in the segmented format, in place
+    // from the array and straight into the result
+    public static byte[] decryptData(byte[] encryptedData, SecretKey secretKey) throws GeneralSecurityException, IOException {
+        try (OperationTimer timer = Metrics.start(Metrics.AES_DECRYPT)) {
+            ByteBuffer header = ByteBuffer.wrap(encryptedData);
+            if (encryptedData.length < STREAM_HEADER_LENGTH || header.getInt(0) != STREAM_MAGIC) {
+                throw new IOException("Not a ZipGuard AES stream");
+            }
+            int segmentSize = header.getInt(4);
+            if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+                throw new IOException("Corrupt AES stream header");
+            }
+            byte[] noncePrefix = Arrays.copyOfRange(encryptedData, 8 + SALT_LENGTH, STREAM_HEADER_LENGTH);
+            SecretKey streamKey = streamKey(secretKey, encryptedData);
+            int ciphertextLength = encryptedData.length - STREAM_HEADER_LENGTH;
+            int sealedSegmentSize = segmentSize + GCM_TAG_LENGTH;
+            int segmentCount = Math.max(1, (int) (((long) ciphertextLength + sealedSegmentSize - 1) / sealedSegmentSize));
+            if (ciphertextLength - (long) (segmentCount - 1) * sealedSegmentSize < GCM_TAG_LENGTH) {
+                throw new EOFException("AES stream is truncated");
+            }
+
+            byte[] decrypted = new byte[ciphertextLength - segmentCount * GCM_TAG_LENGTH];
+            Cipher cipher = CipherCache.cipher(GCM_TRANSFORMATION);
+            int output = 0;
+            for (int index = 0; index < segmentCount; index++) {
+                int position = STREAM_HEADER_LENGTH + index * sealedSegmentSize;
+                cipher.init(Cipher.DECRYPT_MODE, streamKey, segmentNonce(noncePrefix, index, index == segmentCount - 1));
+                cipher.updateAAD(encryptedData, 0, STREAM_HEADER_LENGTH);
+                output += cipher.doFinal(encryptedData, position, Math.min(sealedSegmentSize, encryptedData.length - position),
+                        decrypted, output);
+            }
+            timer.phase("cipher");
+            timer.addBytesIn(encryptedData.length);
+            timer.addBytesOut(decrypted.length);
+            timer.complete();
+            return decrypted;
+        }
+    }
+
+    // Private method to decrypt files from before the streaming format (AES/ECB over the whole file).
+    // The file is fed to the cipher from its mapping one segment-sized chunk at a time.
+    private static void decryptLegacyFile(FileChannel in, FileChannel out, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        Cipher cipher = CipherCache.cipher("AES/ECB/PKCS5Padding");
         cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        return cipher.doFinal(encryptedData);
+        MappedFile mapped = new MappedFile(in);
+        ByteBuffer plaintext = BufferPool.direct(DEFAULT_SEGMENT_SIZE + GCM_TAG_LENGTH);
+        try {
+            for (long position = 0; ; position += DEFAULT_SEGMENT_SIZE) {
+                int length = (int) Math.min(DEFAULT_SEGMENT_SIZE, mapped.size() - position);
+                boolean last = position + length == mapped.size();
+                plaintext.clear();
+                if (last) {
+                    cipher.doFinal(mapped.slice(position, length), plaintext);
+                } else {
+                    cipher.update(mapped.slice(position, length), plaintext);
+                }
+                plaintext.flip();
+                IoUtils.writeFully(out, plaintext);
+                if (last) {
+                    return;
+                }
+            }
+        } finally {
+            BufferPool.release(plaintext);
+        }
     }
 
     // Private method to write data to a file
@@ -66,8 +548,8 @@ public class AesUtils {
         return Files.readAllBytes(path);
     }
 
-    // Private method to convert AES SecretKey to PEM format
-    private static String getPEMAESKey(SecretKey secretKey) {
+    // Converts an AES SecretKey to PEM format
+    static String getPEMAESKey(SecretKey secretKey) {
         String encoded = Base64.getEncoder().encodeToString(secretKey.getEncoded());
         return "-----BEGIN AES KEY-----\n" + wrapText(encoded) + "\n-----END AES KEY-----";
     }
@@ -84,8 +566,8 @@ public class AesUtils {
         return wrapped.toString();
     }
 
-    // Private method to read AES key from PEM file
-    private static SecretKey readAESKeyFromFile(Path keyFile) throws Exception {
+    // Reads an AES key from a PEM file
+    static SecretKey readAESKeyFromFile(Path keyFile) throws Exception {
         String pem = new String(readFromFile(keyFile));
         String base64Encoded = pem.replace("-----BEGIN AES KEY-----", "")
                                   .replace("-----END AES KEY-----", "")
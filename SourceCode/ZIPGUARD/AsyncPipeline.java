@@ -0,0 +1,936 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+
+/**
+ * Non-blocking compression and encryption for embedding ZipGuard in a service. Every operation
+ * takes a Flow.Publisher of ByteBuffers or a ReadableByteChannel, writes to a WritableByteChannel and
+ * returns at once with a CompletableFuture of its Result; the work runs as short tasks on the
+ * executor, so a few threads can serve any number of concurrent streams.
+ *
+ * Input is cut into units, blocks of blockSize bytes to compress and AES-GCM segments to encrypt.
+ * Units are transformed in parallel and passed on in order. Memory is bounded twice over, so a slow
+ * sink or a busy pool holds back the sources instead of piling up their data:
+ * - an operation has at most maxInFlight units being transformed or waiting for the sink, and asks
+ *   its publisher for the next buffer only while it is below that; chained operations pass the
+ *   same limit back from the last step to the source
+ * - all operations of one pipeline share maxBufferedBytes for the units they have started. An
+ *   operation reserves a whole unit before it asks for the data that starts one; when the budget is
+ *   spent it waits, in arrival order, for other units to be passed on. A unit part way through
+ *   never waits, so the budget may be exceeded by about one source buffer per operation, and a
+ *   decrypting operation also keeps its latest segment until it knows whether that is the last.
+ *   Units are charged at the pipeline's sizes, not at sizes an uploaded stream declares, so streams
+ *   whose blocks exceed blockSize, or whose segments exceed the default segment size, are rejected.
+ *
+ * Compressed output is a BlockStream, encrypted output is the AesUtils segmented format and
+ * compressAndEncrypt writes a .zg container holding a BlockStream, which PipelineUtils restores.
+ * Channel sources are read on the executor with blocking reads; services whose uploads arrive
+ * asynchronously should hand them over as a Publisher so that no thread waits on a client.
+ */
+public final class AsyncPipeline {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+
+    // Size of the reads from a channel source
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final Executor executor;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final Budget budget;
+
+    public AsyncPipeline() {
+        this(ForkJoinPool.commonPool(), DEFAULT_BLOCK_SIZE, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    public AsyncPipeline(Executor executor, int blockSize, int maxInFlight, long maxBufferedBytes) {
+        if (blockSize <= 0 || blockSize > BlockHuffmanCodec.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + BlockHuffmanCodec.MAX_BLOCK_SIZE + ": " + blockSize);
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("At least one unit must be allowed in flight: " + maxInFlight);
+        }
+        if (maxBufferedBytes <= 0) {
+            throw new IllegalArgumentException("Buffered bytes must be positive: " + maxBufferedBytes);
+        }
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+        this.budget = new Budget(maxBufferedBytes);
+    }
+
+    // Bytes taken from the source and written to the sink by one operation, and its wall time
+    public static final class Result {
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long elapsedNanos;
+
+        Result(long bytesIn, long bytesOut, long elapsedNanos) {
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d bytes in, %d bytes out, %.3f ms", bytesIn, bytesOut, elapsedNanos / 1e6);
+        }
+    }
+
+    public CompletableFuture<Result> compress(Flow.Publisher<ByteBuffer> source, WritableByteChannel sink) {
+        ChannelSink out = new ChannelSink(sink);
+        return run(Metrics.ASYNC_COMPRESS, source, new CompressStage(out), out);
+    }
+
+    public CompletableFuture<Result> compress(ReadableByteChannel source, WritableByteChannel sink) {
+        return compress(publisher(source), sink);
+    }
+
+    public CompletableFuture<Result> decompress(Flow.Publisher<ByteBuffer> source, WritableByteChannel sink) {
+        ChannelSink out = new ChannelSink(sink);
+        return run(Metrics.ASYNC_DECOMPRESS, source, new DecompressStage(out), out);
+    }
+
+    public CompletableFuture<Result> decompress(ReadableByteChannel source, WritableByteChannel sink) {
+        return decompress(publisher(source), sink);
+    }
+
+    public CompletableFuture<Result> encrypt(Flow.Publisher<ByteBuffer> source, WritableByteChannel sink, SecretKey secretKey) {
+        ChannelSink out = new ChannelSink(sink);
+        return run(Metrics.ASYNC_ENCRYPT, source, new EncryptStage(out, secretKey, new byte[0]), out);
+    }
+
+    public CompletableFuture<Result> encrypt(ReadableByteChannel source, WritableByteChannel sink, SecretKey secretKey) {
+        return encrypt(publisher(source), sink, secretKey);
+    }
+
+    public CompletableFuture<Result> decrypt(Flow.Publisher<ByteBuffer> source, WritableByteChannel sink, SecretKey secretKey) {
+        ChannelSink out = new ChannelSink(sink);
+        return run(Metrics.ASYNC_DECRYPT, source, new DecryptStage(out, secretKey, false), out);
+    }
+
+    public CompletableFuture<Result> decrypt(ReadableByteChannel source, WritableByteChannel sink, SecretKey secretKey) {
+        return decrypt(publisher(source), sink, secretKey);
+    }
+
+    // Writes a .zg container: compressed blocks are sealed as they come out of the compressor
+    public CompletableFuture<Result> compressAndEncrypt(Flow.Publisher<ByteBuffer> source, WritableByteChannel sink,
+                                                       SecretKey secretKey) {
+        ChannelSink out = new ChannelSink(sink);
+        byte[] header = {PipelineUtils.MAGIC[0], PipelineUtils.MAGIC[1], PipelineUtils.MAGIC[2],
+                PipelineUtils.VERSION, PipelineUtils.CODEC_BLOCK_STREAM, PipelineUtils.CIPHER_AES_GCM};
+        return run(Metrics.ASYNC_COMPRESS_ENCRYPT, source, new CompressStage(new EncryptStage(out, secretKey, header)), out);
+    }
+
+    public CompletableFuture<Result> compressAndEncrypt(ReadableByteChannel source, WritableByteChannel sink,
+                                                       SecretKey secretKey) {
+        return compressAndEncrypt(publisher(source), sink, secretKey);
+    }
+
+    // Restores a container written by compressAndEncrypt
+    public CompletableFuture<Result> decryptAndDecompress(Flow.Publisher<ByteBuffer> source, WritableByteChannel sink,
+                                                          SecretKey secretKey) {
+        ChannelSink out = new ChannelSink(sink);
+        return run(Metrics.ASYNC_DECRYPT_DECOMPRESS, source, new DecryptStage(new DecompressStage(out), secretKey, true), out);
+    }
+
+    public CompletableFuture<Result> decryptAndDecompress(ReadableByteChannel source, WritableByteChannel sink,
+                                                          SecretKey secretKey) {
+        return decryptAndDecompress(publisher(source), sink, secretKey);
+    }
+
+    // Publishes the contents of a channel, reading on the executor only as much as has been requested
+    public Flow.Publisher<ByteBuffer> publisher(ReadableByteChannel channel) {
+        Objects.requireNonNull(channel, "channel");
+        return subscriber -> subscriber.onSubscribe(new ChannelSubscription(channel, subscriber));
+    }
+
+    // Runs a task body on the executor's terms: checked exceptions become the future's failure
+    private static <T> T call(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private CompletableFuture<Result> run(String operation, Flow.Publisher<ByteBuffer> source, Stage first, ChannelSink sink) {
+        long start = System.nanoTime();
+        source.subscribe(first);
+        return first.done.handle((ignored, error) -> {
+            long elapsed = System.nanoTime() - start;
+            Map<String, Long> phases = Map.of("transform", first.transformNanos(), "write", sink.writeNanos);
+            Metrics.get(operation).record(error == null, elapsed, first.bytesIn, sink.bytesOut, phases);
+            if (error != null) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            return new Result(first.bytesIn, sink.bytesOut, elapsed);
+        });
+    }
+
+    // Memory that the operations of a pipeline hold for their units. A stage reserves a whole unit
+    // before it asks its source for the data that starts one, so a unit part way through never waits
+    // for memory; only the request that would start the next unit does, in arrival order.
+    private static final class Budget {
+        private final long limit;
+        private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private final ArrayDeque<Long> waitingBytes = new ArrayDeque<>();
+        private long used;
+
+        Budget(long limit) {
+            this.limit = limit;
+        }
+
+        CompletableFuture<Void> acquire(long bytes) {
+            synchronized (this) {
+                if (waiting.isEmpty() && used < limit) {
+                    used += bytes;
+                    return CompletableFuture.completedFuture(null);
+                }
+                CompletableFuture<Void> granted = new CompletableFuture<>();
+                waiting.add(granted);
+                waitingBytes.add(bytes);
+                return granted;
+            }
+        }
+
+        // For data that has already arrived: a source buffer may run into units nobody asked for
+        synchronized void charge(long bytes) {
+            used += bytes;
+        }
+
+        void release(long bytes) {
+            List<CompletableFuture<Void>> granted = new ArrayList<>();
+            synchronized (this) {
+                used -= bytes;
+                while (used < limit && !waiting.isEmpty()) {
+                    used += waitingBytes.poll();
+                    granted.add(waiting.poll());
+                }
+            }
+            for (CompletableFuture<Void> future : granted) {
+                future.complete(null);
+            }
+        }
+    }
+
+    // Where a stage passes its output: the operation's channel, or the next stage
+    private interface Downstream {
+        // Completes once the parts have been taken and more may be sent
+        CompletableFuture<Void> write(ByteBuffer[] parts);
+
+        // Called after the last write; completes once everything downstream has finished
+        CompletableFuture<Void> complete();
+
+        void fail(Throwable error);
+    }
+
+    private static final class ChannelSink implements Downstream {
+        private final WritableByteChannel channel;
+        // Only touched by writes, which one stage issues strictly one after another
+        private long bytesOut;
+        private long writeNanos;
+
+        ChannelSink(WritableByteChannel channel) {
+            this.channel = Objects.requireNonNull(channel, "sink");
+        }
+
+        @Override
+        public CompletableFuture<Void> write(ByteBuffer[] parts) {
+            long start = System.nanoTime();
+            try {
+                for (ByteBuffer part : parts) {
+                    bytesOut += part.remaining();
+                    IoUtils.writeFully(channel, part);
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                writeNanos += System.nanoTime() - start;
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> complete() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            // The caller owns the channel and learns of the failure from the operation's future
+        }
+    }
+
+    /**
+     * One step of an operation. Bytes arrive through accept, from the publisher or from the step
+     * before, and are cut into units, which are transformed on the executor; the results go
+     * downstream in unit order. Stages that must tell the last unit apart hold each complete unit
+     * back until the next byte or the end of the input shows whether it is. The future returned by
+     * accept completes when fewer than maxInFlight units are outstanding.
+     *
+     * A stage fed by a publisher charges every unit it starts to the pipeline's budget, the stream
+     * header included, until the unit's output has gone downstream. A held unit is not charged while
+     * it waits, so an operation can always take the input that decides it.
+     */
+    private abstract class Stage implements Flow.Subscriber<ByteBuffer>, Downstream {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final Downstream downstream;
+        private final LongAdder transformNanos = new LongAdder();
+        private Flow.Subscription subscription;
+
+        // Input side, used by one thread at a time as the subscriber contract requires
+        volatile long bytesIn;
+        private byte[] unit;
+        private int filled;
+        private long unitCharge;
+        private ByteBuffer held;
+        private boolean headerRead;
+        private int index;
+        private CompletableFuture<Void> tail;
+
+        // Output of the units, counted as it goes downstream
+        long bytesOut;
+
+        // Shared with the completions, under the stage's lock: units submitted but not yet taken
+        // downstream, the future a full stage hands out, the budget charged for started units, a
+        // reservation granted but not yet used, and whether the source has finished
+        private int inFlight;
+        private CompletableFuture<Void> space;
+        private long charged;
+        private long granted;
+        private boolean inputEnded;
+
+        Stage(Downstream downstream) {
+            this.downstream = downstream;
+            this.tail = CompletableFuture.completedFuture(null);
+        }
+
+        // Sends the stream header ahead of every unit; subclasses call it from their constructor
+        void begin(ByteBuffer... parts) {
+            tail = downstream.write(parts);
+        }
+
+        // Bytes of stream header to read before the first unit
+        int headerLength() {
+            return 0;
+        }
+
+        void readHeader(ByteBuffer header) throws IOException {
+        }
+
+        // Length of the unit whose first `filled` bytes are in unit
+        abstract int unitLength(byte[] unit, int filled) throws IOException;
+
+        // Budget charged for each unit: the longest unit the stage expects
+        abstract int maxUnitLength();
+
+        abstract ByteBuffer[] transform(ByteBuffer unit, int index, boolean last) throws Exception;
+
+        // Parts to send after the last unit's, once all of them have gone downstream
+        ByteBuffer[] finish() throws IOException {
+            return new ByteBuffer[0];
+        }
+
+        // Whether transform needs to know which unit is the last
+        boolean needsLast() {
+            return false;
+        }
+
+        // Summed over the units of this stage and the stages after it
+        long transformNanos() {
+            return transformNanos.sum() + (downstream instanceof Stage ? ((Stage) downstream).transformNanos() : 0);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (this.subscription != null) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            budget.acquire(maxUnitLength()).thenRun(this::requestWithGrant);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            accept(item).thenRun(() -> {
+                // Only a stage between units needs memory before it asks for more
+                boolean needsGrant;
+                synchronized (this) {
+                    needsGrant = filled == 0 && granted == 0;
+                }
+                if (needsGrant) {
+                    budget.acquire(maxUnitLength()).thenRun(this::requestWithGrant);
+                } else {
+                    subscription.request(1);
+                }
+            });
+        }
+
+        // Keeps the reservation just granted for the next unit and asks for its data. Publishers may
+        // complete without being asked, so the input can have ended or failed in the meantime.
+        private void requestWithGrant() {
+            boolean request;
+            synchronized (this) {
+                request = !done.isDone() && !inputEnded;
+                if (request) {
+                    granted += maxUnitLength();
+                }
+            }
+            if (request) {
+                subscription.request(1);
+            } else {
+                budget.release(maxUnitLength());
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            fail(error);
+        }
+
+        @Override
+        public void onComplete() {
+            complete();
+        }
+
+        @Override
+        public CompletableFuture<Void> write(ByteBuffer[] parts) {
+            CompletableFuture<Void> taken = CompletableFuture.completedFuture(null);
+            for (ByteBuffer part : parts) {
+                taken = accept(part);
+            }
+            return taken;
+        }
+
+        // Copies data into units and submits the complete ones; data can be reused once this returns
+        CompletableFuture<Void> accept(ByteBuffer data) {
+            if (done.isDone()) {
+                return done;
+            }
+            try {
+                bytesIn += data.remaining();
+                if (!headerRead && headerLength() == 0) {
+                    readHeader(ByteBuffer.allocate(0));
+                    headerRead = true;
+                }
+                while (data.hasRemaining()) {
+                    if (filled == 0) {
+                        if (held != null) {
+                            submit(held, false, chargeHeld());
+                            held = null;
+                        }
+                        unitCharge = startUnit();
+                    }
+                    int length = headerRead ? unitLength(unit, filled) : headerLength();
+                    int n = Math.min(data.remaining(), length - filled);
+                    // Units grow with their data, so a stage waiting part way through one holds only what it has
+                    if (unit == null || unit.length < filled + n) {
+                        unit = Arrays.copyOf(unit == null ? new byte[0] : unit,
+                                (int) Math.min(length, Math.max(filled + n, 2L * filled)));
+                    }
+                    data.get(unit, filled, n);
+                    filled += n;
+                    if (filled == length && (!headerRead || unitLength(unit, filled) == length)) {
+                        ByteBuffer complete = ByteBuffer.wrap(unit, 0, filled);
+                        long charge = unitCharge;
+                        unit = null;
+                        filled = 0;
+                        unitCharge = 0;
+                        if (!headerRead) {
+                            readHeader(complete);
+                            headerRead = true;
+                            releaseCharge(charge);
+                        } else if (needsLast()) {
+                            held = complete;
+                            releaseCharge(charge);
+                        } else {
+                            submit(complete, false, charge);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+                return done;
+            }
+            return space();
+        }
+
+        // Charges a unit about to start, from the reservation made for it if there is one
+        private long startUnit() {
+            if (subscription == null) {
+                return 0;
+            }
+            long charge = maxUnitLength();
+            boolean reserved;
+            synchronized (this) {
+                reserved = granted >= charge;
+                if (reserved) {
+                    granted -= charge;
+                }
+                charged += charge;
+            }
+            if (!reserved) {
+                budget.charge(charge);
+            }
+            return charge;
+        }
+
+        private long chargeHeld() {
+            if (subscription == null) {
+                return 0;
+            }
+            long charge = maxUnitLength();
+            synchronized (this) {
+                charged += charge;
+            }
+            budget.charge(charge);
+            return charge;
+        }
+
+        // Returns up to bytes of the stage's charge to the budget; after a failure there is none left
+        private void releaseCharge(long bytes) {
+            long released;
+            synchronized (this) {
+                released = Math.min(bytes, charged);
+                charged -= released;
+            }
+            if (released != 0) {
+                budget.release(released);
+            }
+        }
+
+        // End of input: the held or partial unit is the last one, then the trailer follows
+        @Override
+        public CompletableFuture<Void> complete() {
+            if (done.isDone()) {
+                return done;
+            }
+            long unused;
+            synchronized (this) {
+                inputEnded = true;
+                unused = granted;
+                granted = 0;
+            }
+            if (unused != 0) {
+                budget.release(unused);
+            }
+            try {
+                ByteBuffer partial = ByteBuffer.wrap(unit == null ? new byte[0] : unit, 0, filled);
+                if (!headerRead) {
+                    readHeader(partial);
+                    releaseCharge(unitCharge);
+                    partial = ByteBuffer.allocate(0);
+                }
+                if (held != null && !partial.hasRemaining()) {
+                    submit(held, true, chargeHeld());
+                } else {
+                    if (held != null) {
+                        submit(held, false, chargeHeld());
+                    }
+                    submit(partial, true, partial.hasRemaining() ? unitCharge : 0);
+                }
+                held = null;
+                unit = null;
+                filled = 0;
+                unitCharge = 0;
+            } catch (IOException e) {
+                fail(e);
+                return done;
+            }
+            tail.thenCompose(ignored -> downstream.write(call(this::finish)))
+                    .thenCompose(ignored -> downstream.complete())
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            fail(error);
+                        } else {
+                            done.complete(null);
+                        }
+                    });
+            return done;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (!done.completeExceptionally(cause)) {
+                return;
+            }
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            downstream.fail(cause);
+            CompletableFuture<Void> waiting;
+            long released;
+            synchronized (this) {
+                waiting = space;
+                space = null;
+                released = charged + granted;
+                charged = 0;
+                granted = 0;
+            }
+            if (released != 0) {
+                budget.release(released);
+            }
+            if (waiting != null) {
+                waiting.completeExceptionally(cause);
+            }
+        }
+
+        private void submit(ByteBuffer data, boolean last, long charge) throws IOException {
+            if (index == Integer.MAX_VALUE) {
+                throw new IOException("Input has too many units");
+            }
+            int unitIndex = index++;
+            synchronized (this) {
+                inFlight++;
+            }
+            CompletableFuture<ByteBuffer[]> work = CompletableFuture.supplyAsync(() -> call(() -> {
+                long start = System.nanoTime();
+                try {
+                    return transform(data, unitIndex, last);
+                } finally {
+                    transformNanos.add(System.nanoTime() - start);
+                }
+            }), executor);
+            tail = tail.thenCombine(work, (ignored, parts) -> parts).thenCompose(parts -> {
+                for (ByteBuffer part : parts) {
+                    bytesOut += part.remaining();
+                }
+                return downstream.write(parts);
+            });
+            tail.whenComplete((ignored, error) -> {
+                releaseCharge(charge);
+                release();
+                if (error != null) {
+                    fail(error);
+                }
+            });
+        }
+
+        private synchronized CompletableFuture<Void> space() {
+            if (inFlight < maxInFlight) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (space == null) {
+                space = new CompletableFuture<>();
+            }
+            return space;
+        }
+
+        private void release() {
+            CompletableFuture<Void> waiting = null;
+            synchronized (this) {
+                inFlight--;
+                if (space != null && inFlight < maxInFlight) {
+                    waiting = space;
+                    space = null;
+                }
+            }
+            if (waiting != null) {
+                waiting.complete(null);
+            }
+        }
+    }
+
+    private final class CompressStage extends Stage {
+        CompressStage(Downstream downstream) {
+            super(downstream);
+            begin(BlockStream.header(blockSize));
+        }
+
+        @Override
+        int unitLength(byte[] unit, int filled) {
+            return blockSize;
+        }
+
+        @Override
+        int maxUnitLength() {
+            return blockSize;
+        }
+
+        @Override
+        ByteBuffer[] transform(ByteBuffer block, int index, boolean last) throws IOException {
+            return block.hasRemaining() ? BlockStream.encodeFrame(block) : new ByteBuffer[0];
+        }
+
+        @Override
+        ByteBuffer[] finish() {
+            return new ByteBuffer[] {BlockStream.endFrame(bytesIn)};
+        }
+    }
+
+    private final class DecompressStage extends Stage {
+        private int streamBlockSize;
+        private boolean ended;
+        private volatile long declaredLength = -1;
+
+        DecompressStage(Downstream downstream) {
+            super(downstream);
+        }
+
+        @Override
+        int headerLength() {
+            return BlockStream.HEADER_SIZE;
+        }
+
+        // Units are charged at this pipeline's block size, so a stream with larger blocks would buffer
+        // more than the budget knows of
+        @Override
+        void readHeader(ByteBuffer header) throws IOException {
+            streamBlockSize = BlockStream.readHeader(header);
+            if (streamBlockSize > blockSize) {
+                throw new IOException("Block stream uses " + streamBlockSize + "-byte blocks, more than this pipeline's "
+                        + blockSize);
+            }
+        }
+
+        @Override
+        int unitLength(byte[] unit, int filled) throws IOException {
+            if (ended) {
+                throw new IOException("Unexpected data after the block stream");
+            }
+            if (filled < BlockStream.FRAME_HEADER_SIZE) {
+                return BlockStream.FRAME_HEADER_SIZE;
+            }
+            ByteBuffer frame = ByteBuffer.wrap(unit);
+            int length = BlockStream.frameLength(frame, streamBlockSize);
+            ended = filled == length && BlockStream.isEndFrame(frame);
+            return length;
+        }
+
+        // No frame of a stream that readHeader accepts is longer
+        @Override
+        int maxUnitLength() {
+            return BlockStream.FRAME_HEADER_SIZE + blockSize + 1;
+        }
+
+        // The last unit is whatever followed the end frame, so it must be empty
+        @Override
+        ByteBuffer[] transform(ByteBuffer frame, int index, boolean last) throws IOException {
+            if (last && !frame.hasRemaining()) {
+                return new ByteBuffer[0];
+            }
+            if (last || frame.remaining() != BlockStream.frameLength(frame, streamBlockSize)) {
+                throw new EOFException("Block stream is truncated");
+            }
+            if (BlockStream.isEndFrame(frame)) {
+                declaredLength = frame.getLong(BlockStream.FRAME_HEADER_SIZE);
+                return new ByteBuffer[0];
+            }
+            return new ByteBuffer[] {BlockStream.decodeFrame(frame)};
+        }
+
+        @Override
+        ByteBuffer[] finish() throws IOException {
+            if (declaredLength == -1) {
+                throw new EOFException("Block stream is truncated");
+            }
+            if (declaredLength != bytesOut) {
+                throw new IOException("Block stream length does not match its blocks");
+            }
+            return new ByteBuffer[0];
+        }
+    }
+
+    private final class EncryptStage extends Stage {
+        private final SecretKey streamKey;
+        private final byte[] associatedData;
+
+        // containerHeader is written ahead of the AES stream and authenticated with it; empty for a bare stream
+        EncryptStage(Downstream downstream, SecretKey secretKey, byte[] containerHeader) {
+            super(downstream);
+            Objects.requireNonNull(secretKey, "secretKey");
+            byte[] salt = new byte[AesUtils.SALT_LENGTH];
+            AesUtils.RANDOM.nextBytes(salt);
+            byte[] noncePrefix = new byte[AesUtils.NONCE_PREFIX_LENGTH];
+            AesUtils.RANDOM.nextBytes(noncePrefix);
+            ByteBuffer header = ByteBuffer.allocate(AesUtils.STREAM_HEADER_LENGTH);
+            header.putInt(AesUtils.STREAM_MAGIC).putInt(AesUtils.DEFAULT_SEGMENT_SIZE).put(salt).put(noncePrefix);
+            try {
+                this.streamKey = AesUtils.streamKey(secretKey, header.array());
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Cannot derive an AES-GCM stream key: " + e.getMessage(), e);
+            }
+            this.associatedData = AesGcmOutputStream.concat(containerHeader, header.array());
+            begin(ByteBuffer.wrap(associatedData));
+        }
+
+        @Override
+        int unitLength(byte[] unit, int filled) {
+            return AesUtils.DEFAULT_SEGMENT_SIZE;
+        }
+
+        @Override
+        int maxUnitLength() {
+            return AesUtils.DEFAULT_SEGMENT_SIZE;
+        }
+
+        // Full segments are sealed as they fill; the one still open at the end, empty if the input
+        // ended on a segment boundary, is sealed as the last
+        @Override
+        ByteBuffer[] transform(ByteBuffer segment, int index, boolean last) throws Exception {
+            return new ByteBuffer[] {AesUtils.cipherSegment(Cipher.ENCRYPT_MODE, streamKey, associatedData, index, last, segment)};
+        }
+    }
+
+    private final class DecryptStage extends Stage {
+        private final SecretKey secretKey;
+        private final boolean container;
+        private SecretKey streamKey;
+        private byte[] associatedData;
+        private int segmentSize;
+
+        // With container set the stream must start with the header of a compressAndEncrypt container
+        DecryptStage(Downstream downstream, SecretKey secretKey, boolean container) {
+            super(downstream);
+            this.secretKey = Objects.requireNonNull(secretKey, "secretKey");
+            this.container = container;
+        }
+
+        @Override
+        int headerLength() {
+            return (container ? PipelineUtils.HEADER_LENGTH : 0) + AesUtils.STREAM_HEADER_LENGTH;
+        }
+
+        @Override
+        void readHeader(ByteBuffer header) throws IOException {
+            byte[] bytes = new byte[header.remaining()];
+            header.get(bytes);
+            int offset = 0;
+            if (container) {
+                byte[] containerHeader = PipelineUtils.readHeader(new ByteArrayInputStream(bytes));
+                if (containerHeader[4] != PipelineUtils.CODEC_BLOCK_STREAM) {
+                    throw new IOException("Only containers written by compressAndEncrypt can be restored here");
+                }
+                offset = PipelineUtils.HEADER_LENGTH;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(bytes, offset, bytes.length - offset).slice();
+            if (fields.remaining() != AesUtils.STREAM_HEADER_LENGTH || fields.getInt(0) != AesUtils.STREAM_MAGIC) {
+                throw new IOException("Not a ZipGuard AES stream");
+            }
+            segmentSize = fields.getInt(4);
+            if (segmentSize <= 0 || segmentSize > AesUtils.MAX_SEGMENT_SIZE) {
+                throw new IOException("Corrupt AES stream header");
+            }
+            // Segments are charged at the default size that every ZipGuard writer but
+            // AesUtils.encryptStream with a larger size uses, so larger ones would escape the budget
+            if (segmentSize > AesUtils.DEFAULT_SEGMENT_SIZE) {
+                throw new IOException("AES stream uses " + segmentSize + "-byte segments, more than the "
+                        + AesUtils.DEFAULT_SEGMENT_SIZE + " this pipeline buffers; decrypt it with AesUtils");
+            }
+            try {
+                streamKey = AesUtils.streamKey(secretKey, Arrays.copyOfRange(bytes, offset, bytes.length));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot derive the AES-GCM stream key", e);
+            }
+            associatedData = bytes;
+        }
+
+        @Override
+        int unitLength(byte[] unit, int filled) {
+            return segmentSize + AesUtils.GCM_TAG_LENGTH;
+        }
+
+        @Override
+        int maxUnitLength() {
+            return AesUtils.DEFAULT_SEGMENT_SIZE + AesUtils.GCM_TAG_LENGTH;
+        }
+
+        @Override
+        boolean needsLast() {
+            return true;
+        }
+
+        @Override
+        ByteBuffer[] transform(ByteBuffer segment, int index, boolean last) throws Exception {
+            return new ByteBuffer[] {AesUtils.cipherSegment(Cipher.DECRYPT_MODE, streamKey, associatedData, index, last, segment)};
+        }
+    }
+
+    // Reads the channel on the executor while there is demand. A drain reuses one buffer for all its
+    // reads, as subscribers are done with each buffer when onNext returns.
+    private final class ChannelSubscription implements Flow.Subscription {
+        private final ReadableByteChannel channel;
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger(); // Requests not yet seen by the read loop
+        private volatile boolean cancelled;
+
+        ChannelSubscription(ReadableByteChannel channel, Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.channel = channel;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        // Only one drain runs at a time; a request made meanwhile, even from inside onNext, makes it loop
+        private void drain() {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            int missed = 1;
+            do {
+                while (!cancelled && demand.get() > 0) {
+                    int read;
+                    try {
+                        buffer.clear();
+                        read = channel.read(buffer);
+                    } catch (IOException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (read < 0) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (read > 0) {
+                        demand.decrementAndGet();
+                        subscriber.onNext(buffer.flip());
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
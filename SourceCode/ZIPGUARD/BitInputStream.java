@@ -0,0 +1,126 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// Reads a most-significant-bit-first bitstream through a byte buffer. The 64-bit bit buffer is
+// refilled a word at a time, so callers can peek whole codes without touching the input per byte.
+class BitInputStream implements AutoCloseable {
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private long bitBuffer; // Holds bitCount not-yet-consumed bits, most significant first
+    private int bitCount;
+
+    public BitInputStream(InputStream in) {
+        this(in, HuffmanCodec.DEFAULT_BUFFER_SIZE);
+    }
+
+    public BitInputStream(InputStream in, int bufferSize) {
+        this(in, new byte[bufferSize]);
+    }
+
+    // Reads through the caller's buffer, for example one from BufferPool, which stays the caller's
+    public BitInputStream(InputStream in, byte[] buffer) {
+        this.in = in;
+        this.buffer = buffer;
+        this.position = 0;
+        this.limit = 0;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+    }
+
+    // Makes at least 32 bits available (or everything up to the end of input) and returns the bits available
+    public int fill() throws IOException {
+        if (bitCount >= 32) {
+            return bitCount;
+        }
+        if (limit - position >= 8) {
+            // Take as many whole bytes of the next big-endian word as fit next to the pending bits
+            int bytes = (63 - bitCount) >>> 3;
+            long word = (long) LONG_BE.get(buffer, position);
+            bitBuffer = (bitBuffer << (bytes << 3)) | (word >>> (64 - (bytes << 3)));
+            bitCount += bytes << 3;
+            position += bytes;
+            return bitCount;
+        }
+        while (bitCount <= 56) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    break;
+                }
+            }
+            bitBuffer = (bitBuffer << 8) | (buffer[position++] & 0xFF);
+            bitCount += 8;
+        }
+        return bitCount;
+    }
+
+    // Returns the next n (at most 32) bits without consuming them, zero-padded past the end of input
+    public int peekBits(int n) {
+        if (bitCount >= n) {
+            return (int) ((bitBuffer >>> (bitCount - n)) & ((1L << n) - 1));
+        }
+        return (int) ((bitBuffer << (n - bitCount)) & ((1L << n) - 1));
+    }
+
+    public void skipBits(int n) {
+        bitCount -= n;
+    }
+
+    public int readBits(int n) throws IOException {
+        if (fill() < n) {
+            throw new EOFException("Unexpected end of compressed data");
+        }
+        int value = peekBits(n);
+        skipBits(n);
+        return value;
+    }
+
+    public int readBit() throws IOException {
+        if (bitCount == 0 && fill() == 0) {
+            return -1;
+        }
+
+        bitCount--;
+        return (int) (bitBuffer >>> bitCount) & 1;
+    }
+
+    // Bulk read of whole bytes; the stream must be at a byte boundary. Returns the number of bytes
+    // read, which is less than len only at the end of input.
+    public int readBytes(byte[] b, int off, int len) throws IOException {
+        if ((bitCount & 7) != 0) {
+            throw new IllegalStateException("Not at a byte boundary");
+        }
+        int done = 0;
+        while (done < len && bitCount > 0) {
+            bitCount -= 8;
+            b[off + done++] = (byte) (bitBuffer >>> bitCount);
+        }
+        int buffered = Math.min(len - done, limit - position);
+        System.arraycopy(buffer, position, b, off + done, buffered);
+        position += buffered;
+        done += buffered;
+        while (done < len) {
+            int read = in.read(b, off + done, len - done);
+            if (read < 0) {
+                break;
+            }
+            done += read;
+        }
+        return done;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,87 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// Writes a most-significant-bit-first bitstream, padding the last byte with zero bits. Whole codes
+// are packed into a 64-bit accumulator and leave it as 32-bit words, which collect in a byte buffer
+// that is handed to the underlying stream in bulk.
+class BitOutputStream implements AutoCloseable {
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private OutputStream out;
+    private byte[] buffer;
+    private int position;
+    private long bitBuffer; // The low bitCount bits are pending output, most significant first
+    private int bitCount;   // Always below 32 between calls
+
+    public BitOutputStream(OutputStream out) {
+        this(out, HuffmanCodec.DEFAULT_BUFFER_SIZE);
+    }
+
+    public BitOutputStream(OutputStream out, int bufferSize) {
+        this(out, new byte[Math.max(bufferSize, 8)]);
+    }
+
+    // Writes through the caller's buffer of at least 8 bytes, for example one from BufferPool
+    public BitOutputStream(OutputStream out, byte[] buffer) {
+        if (buffer.length < 8) {
+            throw new IllegalArgumentException("Bit output buffer must hold at least 8 bytes: " + buffer.length);
+        }
+        this.out = out;
+        this.buffer = buffer;
+        this.position = 0;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+    }
+
+    // Writes the low n (at most 64) bits of value, most significant first
+    public void writeBits(long value, int n) throws IOException {
+        if (n > 32) {
+            writeBits(value >>> 32, n - 32);
+            n = 32;
+        }
+        bitBuffer = (bitBuffer << n) | (value & ((1L << n) - 1));
+        bitCount += n;
+        if (bitCount >= 32) {
+            bitCount -= 32;
+            if (position > buffer.length - 4) {
+                drain();
+            }
+            INT_BE.set(buffer, position, (int) (bitBuffer >>> bitCount));
+            position += 4;
+        }
+    }
+
+    public void writeBit(boolean bit) throws IOException {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    // Pads and writes out any partial byte and flushes, leaving the underlying stream open
+    public void finish() throws IOException {
+        while (bitCount > 0) {
+            if (position == buffer.length) {
+                drain();
+            }
+            int shift = bitCount - 8;
+            buffer[position++] = (byte) (shift >= 0 ? bitBuffer >>> shift : bitBuffer << -shift);
+            bitCount = Math.max(shift, 0);
+        }
+        bitBuffer = 0;
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
@@ -0,0 +1,387 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parallel Huffman codec. The input is split into fixed-size blocks that are compressed
+ * independently, each with its own code table, on a ForkJoinPool. An index at the end of the file
+ * records where every block starts, so decompression runs in parallel as well.
+ *
+ * Layout: header (magic "ZGB2", block size, original length), the blocks, the index
+ * (offset and length of every block), then a trailer (index offset, block count, magic).
+ * Every block starts with its BlockModes mode byte: Huffman-coded blocks carry their code table,
+ * run-length blocks their pairs and stored blocks the raw bytes, so incompressible stretches are
+ * copied through untouched. Files in the older "ZGB1" layout, which has only Huffman blocks and no
+ * mode byte, still decompress.
+ *
+ * Every block but the last holds exactly blockSize bytes and starts on a byte boundary, so the index
+ * maps any uncompressed offset to the block that holds it. readRange uses that to decode only the
+ * blocks a byte range touches, reading just their index entries, so a small read from a huge file
+ * costs a few block decodes wherever in the file it falls.
+ *
+ * Files are written with a Checksums trailer after the block trailer. Decompression checks the whole
+ * file against it and readRange the parts it reads; files written before it still decompress.
+ */
+public final class BlockHuffmanCodec {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    static final int MAGIC = 0x5A474232; // "ZGB2"
+    private static final int MAGIC_V1 = 0x5A474231; // "ZGB1"
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int TRAILER_SIZE = 16;
+
+    private final int blockSize;
+    private final ForkJoinPool pool;
+
+    public BlockHuffmanCodec() {
+        this(DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    public BlockHuffmanCodec(int blockSize, ForkJoinPool pool) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + ": " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.pool = Objects.requireNonNull(pool, "pool");
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void compress(Path input, Path output) throws IOException {
+        try (OperationTimer timer = Metrics.start(Metrics.BLOCK_COMPRESS);
+             FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            MappedFile mapped = new MappedFile(in);
+            long originalLength = mapped.size();
+            int blockCount = (int) ((originalLength + blockSize - 1) / blockSize);
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+
+            Checksums.Builder checksums = new Checksums.Builder();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(blockSize).putLong(originalLength).flip();
+            checksums.update(header);
+            IoUtils.writeFully(out, header);
+
+            // Blocks are encoded a window at a time, so at most `window` blocks are held in memory
+            int window = pool.getParallelism() * 4;
+            for (int first = 0; first < blockCount; first += window) {
+                List<Callable<ByteBuffer[]>> tasks = new ArrayList<>();
+                for (int block = first; block < Math.min(first + window, blockCount); block++) {
+                    long position = (long) block * blockSize;
+                    int length = (int) Math.min(blockSize, originalLength - position);
+                    tasks.add(() -> encodeBlock(mapped.slice(position, length)));
+                }
+
+                // Workers read and encode in parallel; only the ordered writes happen on this thread
+                List<ByteBuffer[]> encodedBlocks = IoUtils.invokeAll(pool, tasks);
+                timer.phase("encode");
+                int block = first;
+                for (ByteBuffer[] encoded : encodedBlocks) {
+                    offsets[block] = out.position();
+                    for (ByteBuffer part : encoded) {
+                        checksums.update(part);
+                        IoUtils.writeFully(out, part);
+                    }
+                    lengths[block] = (int) (out.position() - offsets[block]);
+                    block++;
+                }
+                timer.phase("write");
+            }
+
+            long indexOffset = out.position();
+            ByteBuffer index = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+            for (int block = 0; block < blockCount; block++) {
+                index.putLong(offsets[block]).putInt(lengths[block]);
+            }
+            index.putLong(indexOffset).putInt(blockCount).putInt(MAGIC).flip();
+            checksums.update(index);
+            IoUtils.writeFully(out, index);
+            IoUtils.writeFully(out, checksums.trailer(originalLength));
+            timer.phase("write");
+            timer.addBytesIn(originalLength);
+            timer.addBytesOut(out.position());
+            timer.complete();
+        }
+    }
+
+    public void decompress(Path input, Path output) throws IOException {
+        try (OperationTimer timer = Metrics.start(Metrics.BLOCK_DECOMPRESS);
+             FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            Layout layout = Layout.read(in);
+            MappedFile mapped = new MappedFile(in);
+            if (layout.checksums != null) {
+                layout.checksums.verifyAll(mapped);
+            }
+            timer.phase("read");
+
+            decodeAll(layout, in, mapped, out);
+            // Workers read, decode and write their blocks themselves
+            timer.phase("decode");
+            timer.addBytesIn(in.size());
+            timer.addBytesOut(layout.originalLength);
+            timer.complete();
+        }
+    }
+
+    // Checks a block-compressed file without writing anything: against its Checksums trailer, or for
+    // a file written without one, by decoding every block and discarding the output
+    public void verify(Path input) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            Layout layout = Layout.read(in);
+            MappedFile mapped = new MappedFile(in);
+            if (layout.checksums != null) {
+                layout.checksums.verifyAll(mapped);
+            } else {
+                decodeAll(layout, in, mapped, null);
+            }
+        }
+    }
+
+    // Decodes every block in parallel, writing each at its position in out unless out is null
+    private void decodeAll(Layout layout, FileChannel in, MappedFile mapped, FileChannel out) throws IOException {
+        ByteBuffer index = layout.readIndex(in, 0, layout.blockCount);
+        int window = pool.getParallelism() * 4;
+        for (int first = 0; first < layout.blockCount; first += window) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int block = first; block < Math.min(first + window, layout.blockCount); block++) {
+                long offset = index.getLong();
+                int compressedLength = index.getInt();
+                long position = (long) block * layout.blockSize;
+                int length = (int) Math.min(layout.blockSize, layout.originalLength - position);
+                layout.checkEntry(offset, compressedLength, length);
+                tasks.add(() -> {
+                    ByteBuffer decoded = decodeBlock(mapped.slice(offset, compressedLength), length, layout.hasModes);
+                    if (out != null) {
+                        IoUtils.writeFully(out, decoded, position);
+                    }
+                    return null;
+                });
+            }
+            IoUtils.invokeAll(pool, tasks);
+        }
+    }
+
+    // Uncompressed length of a block-compressed file, from its header and trailer alone
+    public long originalLength(Path input) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            return Layout.read(in).originalLength;
+        }
+    }
+
+    // Decodes length bytes starting at uncompressed offset, touching only the blocks that hold them.
+    // Fewer bytes are returned if the range runs past the end of the original data.
+    public byte[] readRange(Path input, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+        }
+        try (OperationTimer timer = Metrics.start(Metrics.BLOCK_READ_RANGE);
+             FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+
+            Layout layout = Layout.read(in);
+            long end = offset >= layout.originalLength ? offset : Math.min(offset + length, layout.originalLength);
+            byte[] range = new byte[(int) Math.max(end - offset, 0)];
+            if (range.length > 0) {
+                int firstBlock = (int) (offset / layout.blockSize);
+                int lastBlock = (int) ((end - 1) / layout.blockSize);
+                ByteBuffer index = layout.readIndex(in, firstBlock, lastBlock - firstBlock + 1);
+                if (layout.checksums != null) {
+                    verifyRange(layout, in, index.duplicate(), firstBlock, lastBlock);
+                }
+                timer.phase("read");
+
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int block = firstBlock; block <= lastBlock; block++) {
+                    long compressedOffset = index.getLong();
+                    int compressedLength = index.getInt();
+                    long position = (long) block * layout.blockSize;
+                    int blockLength = (int) Math.min(layout.blockSize, layout.originalLength - position);
+                    layout.checkEntry(compressedOffset, compressedLength, blockLength);
+                    timer.addBytesIn(compressedLength);
+                    tasks.add(() -> {
+                        ByteBuffer compressed = ByteBuffer.wrap(IoUtils.readFully(in, compressedOffset, compressedLength));
+                        ByteBuffer decoded = decodeBlock(compressed, blockLength, layout.hasModes);
+                        // Only the part of the block inside the range is copied out
+                        long from = Math.max(offset, position);
+                        long to = Math.min(end, position + blockLength);
+                        decoded.position(decoded.position() + (int) (from - position));
+                        decoded.get(range, (int) (from - offset), (int) (to - from));
+                        return null;
+                    });
+                }
+                IoUtils.invokeAll(pool, tasks);
+                timer.phase("decode");
+            }
+            timer.addBytesOut(range.length);
+            timer.complete();
+            return range;
+        }
+    }
+
+    // Checks the header, the index entries of blocks first..last and those blocks' bytes against the
+    // Checksums trailer, so a range read never decodes damaged data
+    private static void verifyRange(Layout layout, FileChannel in, ByteBuffer index, int firstBlock, int lastBlock)
+            throws IOException {
+        MappedFile mapped = new MappedFile(in);
+        layout.checksums.verify(mapped, 0, HEADER_SIZE);
+        long indexStart = layout.indexOffset + (long) firstBlock * INDEX_ENTRY_SIZE;
+        layout.checksums.verify(mapped, indexStart, indexStart + (long) (lastBlock - firstBlock + 1) * INDEX_ENTRY_SIZE);
+        long blocksStart = index.getLong(0);
+        long blocksEnd = index.getLong(index.limit() - INDEX_ENTRY_SIZE) + index.getInt(index.limit() - 4);
+        if (blocksStart < 0 || blocksStart > blocksEnd || blocksEnd > layout.indexOffset) {
+            throw new IOException("Corrupt block index");
+        }
+        layout.checksums.verify(mapped, blocksStart, blocksEnd);
+    }
+
+    // Header and trailer of a block-compressed file, checked against each other and the file size
+    private static final class Layout {
+        final boolean hasModes;
+        final int blockSize;
+        final long originalLength;
+        final long indexOffset;
+        final int blockCount;
+        final Checksums.Trailer checksums; // Null for files written without one
+
+        private Layout(boolean hasModes, int blockSize, long originalLength, long indexOffset, int blockCount,
+                Checksums.Trailer checksums) {
+            this.hasModes = hasModes;
+            this.blockSize = blockSize;
+            this.originalLength = originalLength;
+            this.indexOffset = indexOffset;
+            this.blockCount = blockCount;
+            this.checksums = checksums;
+        }
+
+        static Layout read(FileChannel in) throws IOException {
+            ByteBuffer header = ByteBuffer.wrap(IoUtils.readFully(in, 0, HEADER_SIZE));
+            int magic = header.getInt();
+            if (!isBlockMagic(magic)) {
+                throw new IOException("Not a ZipGuard block-compressed file");
+            }
+            int blockSize = header.getInt();
+            long originalLength = header.getLong();
+
+            // The block trailer sits right before the Checksums trailer, or at the end of older files
+            Checksums.Trailer checksums = Checksums.Trailer.read(in);
+            long size = checksums != null ? checksums.storedLength : in.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Corrupt block index");
+            }
+            ByteBuffer trailer = ByteBuffer.wrap(IoUtils.readFully(in, size - TRAILER_SIZE, TRAILER_SIZE));
+            long indexOffset = trailer.getLong();
+            int blockCount = trailer.getInt();
+            if (trailer.getInt() != magic || blockSize <= 0 || blockSize > MAX_BLOCK_SIZE
+                    || blockCount != (originalLength + blockSize - 1) / blockSize
+                    || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE != size - TRAILER_SIZE) {
+                throw new IOException("Corrupt block index");
+            }
+            if (checksums != null) {
+                checksums.checkLength(originalLength);
+            }
+            return new Layout(magic == MAGIC, blockSize, originalLength, indexOffset, blockCount, checksums);
+        }
+
+        // The (offset, length) index entries of count blocks starting at first
+        ByteBuffer readIndex(FileChannel in, int first, int count) throws IOException {
+            return ByteBuffer.wrap(IoUtils.readFully(in, indexOffset + (long) first * INDEX_ENTRY_SIZE,
+                    count * INDEX_ENTRY_SIZE));
+        }
+
+        // Checks one index entry before anything is read or allocated for it: the block must lie in the
+        // data between the header and the index, and be no longer than blockLength bytes can encode to
+        void checkEntry(long compressedOffset, int compressedLength, int blockLength) throws IOException {
+            if (compressedLength < 0 || compressedLength > maxEncodedLength(blockLength)
+                    || compressedOffset < HEADER_SIZE || compressedOffset > indexOffset - compressedLength) {
+                throw new IOException("Corrupt block index");
+            }
+        }
+
+        // A ZGB2 block is never longer than stored, a mode byte and the data; a ZGB1 block is always
+        // Huffman coded, at worst a full table and every code as long as HuffmanTable reads
+        private long maxEncodedLength(int blockLength) {
+            if (hasModes) {
+                return 1L + blockLength;
+            }
+            return 2 + 2L * HuffmanTable.MAX_SYMBOLS + ((long) blockLength * HuffmanTable.MAX_CODE_LENGTH + 7) / 8;
+        }
+    }
+
+    // True for the magic of either block layout
+    static boolean isBlockMagic(int magic) {
+        return magic == MAGIC || magic == MAGIC_V1;
+    }
+
+    // Encodes one block, read in place from the input mapping, in whichever mode is smallest. Returns
+    // the parts to write in order; a stored block's data is the mapped slice itself.
+    static ByteBuffer[] encodeBlock(ByteBuffer data) throws IOException {
+        BlockModes.Scan scan = BlockModes.scan(data);
+        int mode = BlockModes.choose(scan);
+        ByteBuffer modeByte = ByteBuffer.wrap(new byte[] {(byte) mode});
+        if (mode == BlockModes.STORED) {
+            return new ByteBuffer[] {modeByte, data};
+        }
+
+        int length = data.limit();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 1024);
+        BitOutputStream bitOut = new BitOutputStream(bytes);
+        if (mode == BlockModes.RLE) {
+            BlockModes.writeRle(data, bitOut);
+        } else {
+            HuffmanTable table = scan.table;
+            table.writeTo(bitOut);
+            for (int i = 0; i < length; i++) {
+                table.encode(bitOut, data.get(i) & 0xFF);
+            }
+        }
+        bitOut.finish();
+        return new ByteBuffer[] {modeByte, ByteBuffer.wrap(bytes.toByteArray())};
+    }
+
+    static ByteBuffer decodeBlock(ByteBuffer compressed, int length, boolean hasMode) throws IOException {
+        int mode = BlockModes.HUFFMAN;
+        if (hasMode) {
+            if (!compressed.hasRemaining()) {
+                throw new IOException("Corrupt block: missing mode");
+            }
+            mode = compressed.get();
+        }
+        if (mode == BlockModes.STORED) {
+            if (compressed.remaining() != length) {
+                throw new IOException("Corrupt stored block");
+            }
+            return compressed;
+        }
+        if (mode != BlockModes.HUFFMAN && mode != BlockModes.RLE) {
+            throw new IOException("Corrupt block: unknown mode " + mode);
+        }
+
+        BitInputStream bitIn = new BitInputStream(IoUtils.newInputStream(compressed),
+                Math.max(Math.min(compressed.remaining(), HuffmanCodec.DEFAULT_BUFFER_SIZE), 1));
+        byte[] decoded = new byte[length];
+        if (mode == BlockModes.RLE) {
+            BlockModes.readRle(bitIn, decoded);
+        } else {
+            HuffmanTable table = HuffmanTable.readFrom(bitIn);
+            for (int i = 0; i < length; i++) {
+                decoded[i] = (byte) table.decode(bitIn);
+            }
+        }
+        return ByteBuffer.wrap(decoded);
+    }
+}
@@ -0,0 +1,158 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Chooses how a block of bytes is stored: Huffman-coded, run-length coded, or stored as is. The
+ * choice comes from a single pre-scan that fills the byte histogram and measures the runs. Data
+ * whose histogram entropy is close to 8 bits per byte (already-compressed or encrypted input) is
+ * stored without building a code table, so it costs little more than a copy.
+ *
+ * Run-length form: (byte, run length - 1) pairs, so a run of up to 256 bytes takes two bytes.
+ */
+final class BlockModes {
+
+    static final int STORED = 0;
+    static final int HUFFMAN = 1;
+    static final int RLE = 2;
+
+    // Above this many bits per byte Huffman coding cannot save enough to be worth running
+    static final double STORED_ENTROPY = 7.9;
+
+    private static final int MAX_RUN = 256;
+
+    // Histogram and run-length size of one block, gathered in a single pass
+    static final class Scan {
+        final long[] frequencies = new long[HuffmanTable.MAX_SYMBOLS];
+        long length;
+        long rleLength;
+        HuffmanTable table; // Set by choose when it picks HUFFMAN
+
+        // Shannon entropy of the histogram in bits per byte
+        double entropy() {
+            double bits = 0;
+            for (long frequency : frequencies) {
+                if (frequency != 0) {
+                    double p = (double) frequency / length;
+                    bits -= p * Math.log(p);
+                }
+            }
+            return bits / Math.log(2);
+        }
+    }
+
+    private BlockModes() {
+    }
+
+    static Scan scan(ByteBuffer data) {
+        Scan scan = new Scan();
+        scan(data, scan);
+        return scan;
+    }
+
+    // Adds data to an existing scan; runs are not joined across calls
+    static void scan(ByteBuffer data, Scan scan) {
+        long[] frequencies = scan.frequencies;
+        int n = data.limit();
+        long pairs = 0;
+        int run = 0;
+        int previous = -1;
+        for (int i = 0; i < n; i++) {
+            int b = data.get(i) & 0xFF;
+            frequencies[b]++;
+            if (b == previous && run < MAX_RUN) {
+                run++;
+            } else {
+                pairs++;
+                previous = b;
+                run = 1;
+            }
+        }
+        scan.length += n;
+        scan.rleLength += pairs * 2;
+    }
+
+    // Size in bytes of the Huffman form: the serialized table plus the padded codes
+    static long huffmanLength(Scan scan, HuffmanTable table) {
+        long bits = 16;
+        for (int symbol = 0; symbol < HuffmanTable.MAX_SYMBOLS; symbol++) {
+            if (table.codeLength(symbol) != 0) {
+                bits += 16 + scan.frequencies[symbol] * table.codeLength(symbol);
+            }
+        }
+        return (bits + 7) / 8;
+    }
+
+    // Picks STORED straight from the entropy estimate when run-length coding cannot help either,
+    // otherwise the smallest of the three forms
+    static int choose(Scan scan) {
+        if (scan.length == 0) {
+            return STORED;
+        }
+        if (scan.rleLength >= scan.length && scan.entropy() >= STORED_ENTROPY) {
+            return STORED;
+        }
+        HuffmanTable huffman = HuffmanTable.fromFrequencies(scan.frequencies);
+        long huffmanLength = huffmanLength(scan, huffman);
+        if (huffmanLength < scan.rleLength && huffmanLength < scan.length) {
+            scan.table = huffman;
+            return HUFFMAN;
+        }
+        return scan.rleLength < scan.length ? RLE : STORED;
+    }
+
+    static void writeRle(ByteBuffer data, BitOutputStream out) throws IOException {
+        int n = data.limit();
+        int i = 0;
+        while (i < n) {
+            byte b = data.get(i);
+            int run = 1;
+            while (run < MAX_RUN && i + run < n && data.get(i + run) == b) {
+                run++;
+            }
+            out.writeBits(((b & 0xFF) << 8) | (run - 1), 16);
+            i += run;
+        }
+    }
+
+    // Decodes run-length pairs until target is full
+    static void readRle(BitInputStream in, byte[] target) throws IOException {
+        int count = 0;
+        while (count < target.length) {
+            int pair = in.readBits(16);
+            int run = (pair & 0xFF) + 1;
+            if (run > target.length - count) {
+                throw new IOException("Run-length data overruns the block");
+            }
+            Arrays.fill(target, count, count + run, (byte) (pair >>> 8));
+            count += run;
+        }
+    }
+
+    // Decodes run-length pairs until length bytes have been written to out, through buffer
+    static void readRle(BitInputStream in, byte[] buffer, long length, OutputStream out) throws IOException {
+        int count = 0;
+        while (length > 0) {
+            int pair = in.readBits(16);
+            int run = (pair & 0xFF) + 1;
+            if (run > length) {
+                throw new IOException("Run-length data overruns the block");
+            }
+            length -= run;
+            byte b = (byte) (pair >>> 8);
+            while (run > 0) {
+                int n = Math.min(run, buffer.length - count);
+                Arrays.fill(buffer, count, count + n, b);
+                count += n;
+                run -= n;
+                if (count == buffer.length) {
+                    out.write(buffer, 0, count);
+                    count = 0;
+                }
+            }
+        }
+        out.write(buffer, 0, count);
+    }
+}
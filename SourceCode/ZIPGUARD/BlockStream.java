@@ -0,0 +1,114 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Streamed block layout, written and read front to back without seeking, for output that goes to a
+ * socket or an upload rather than a file. The blocks are the same BlockModes blocks as in
+ * BlockHuffmanCodec, but each carries its own lengths instead of an index at the end.
+ *
+ * Layout: header (magic "ZGS1", block size), then a frame per block (uncompressed length,
+ * compressed length, the block), then an end frame (two zero ints and the total uncompressed
+ * length). A stream that stops before its end frame is reported as truncated.
+ */
+final class BlockStream {
+
+    static final int MAGIC = 0x5A475331; // "ZGS1"
+    static final int HEADER_SIZE = 8;
+    static final int FRAME_HEADER_SIZE = 8;
+    static final int END_FRAME_SIZE = 16;
+
+    private BlockStream() {
+    }
+
+    static ByteBuffer header(int blockSize) {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(blockSize).flip();
+    }
+
+    // Block size from a stream header, checked
+    static int readHeader(ByteBuffer header) throws IOException {
+        if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a ZipGuard block stream");
+        }
+        int blockSize = header.getInt(4);
+        if (blockSize <= 0 || blockSize > BlockHuffmanCodec.MAX_BLOCK_SIZE) {
+            throw new IOException("Corrupt block stream header");
+        }
+        return blockSize;
+    }
+
+    // The frame for one block of data: its frame header followed by the encoded block
+    static ByteBuffer[] encodeFrame(ByteBuffer data) throws IOException {
+        ByteBuffer[] encoded = BlockHuffmanCodec.encodeBlock(data);
+        int compressedLength = 0;
+        for (ByteBuffer part : encoded) {
+            compressedLength += part.remaining();
+        }
+        ByteBuffer[] frame = new ByteBuffer[encoded.length + 1];
+        frame[0] = ByteBuffer.allocate(FRAME_HEADER_SIZE).putInt(data.remaining()).putInt(compressedLength).flip();
+        System.arraycopy(encoded, 0, frame, 1, encoded.length);
+        return frame;
+    }
+
+    static ByteBuffer endFrame(long originalLength) {
+        return ByteBuffer.allocate(END_FRAME_SIZE).putInt(0).putInt(0).putLong(originalLength).flip();
+    }
+
+    // Total size of the frame whose first FRAME_HEADER_SIZE bytes are in frameHeader
+    static int frameLength(ByteBuffer frameHeader, int blockSize) throws IOException {
+        int length = frameHeader.getInt(0);
+        int compressedLength = frameHeader.getInt(4);
+        if (length == 0 && compressedLength == 0) {
+            return END_FRAME_SIZE;
+        }
+        // No mode makes a block longer than its mode byte plus the raw bytes
+        if (length <= 0 || length > blockSize || compressedLength <= 0 || compressedLength > length + 1) {
+            throw new IOException("Corrupt block stream frame");
+        }
+        return FRAME_HEADER_SIZE + compressedLength;
+    }
+
+    static boolean isEndFrame(ByteBuffer frame) {
+        return frame.getInt(0) == 0 && frame.getInt(4) == 0;
+    }
+
+    // Decodes a whole frame, as sized by frameLength
+    static ByteBuffer decodeFrame(ByteBuffer frame) throws IOException {
+        ByteBuffer block = frame.duplicate().position(FRAME_HEADER_SIZE).slice();
+        return BlockHuffmanCodec.decodeBlock(block, frame.getInt(0), true);
+    }
+
+    // Decodes a whole stream from in to out, one block at a time; neither stream is closed
+    static void decode(InputStream in, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[HEADER_SIZE];
+        if (data.readNBytes(header, 0, HEADER_SIZE) != HEADER_SIZE) {
+            throw new IOException("Not a ZipGuard block stream");
+        }
+        int blockSize = readHeader(ByteBuffer.wrap(header));
+
+        long total = 0;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        while (true) {
+            try {
+                data.readFully(frameHeader.array());
+                int length = frameLength(frameHeader, blockSize);
+                if (isEndFrame(frameHeader)) {
+                    if (data.readLong() != total) {
+                        throw new IOException("Block stream length does not match its blocks");
+                    }
+                    return;
+                }
+                byte[] frame = new byte[length];
+                System.arraycopy(frameHeader.array(), 0, frame, 0, FRAME_HEADER_SIZE);
+                data.readFully(frame, FRAME_HEADER_SIZE, length - FRAME_HEADER_SIZE);
+                ByteBuffer decoded = decodeFrame(ByteBuffer.wrap(frame));
+                out.write(decoded.array(), decoded.arrayOffset() + decoded.position(), decoded.remaining());
+                total += decoded.remaining();
+            } catch (EOFException e) {
+                throw new EOFException("Block stream is truncated");
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ZIPGUARD;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Reusable heap and direct buffers for the working memory of the ciphers and codecs, shared by all
+ * threads. Every file used to get freshly allocated segment and stream buffers, which for many small
+ * files costs more in allocation and GC than the work itself; direct buffers are the worst, as they
+ * are freed only after a GC notices them.
+ *
+ * Buffers are pooled by exact capacity, since callers ask for a few fixed sizes (segment and
+ * stream buffer sizes) rather than sizes that follow their input. The pool keeps at most
+ * MAX_BUFFERS_PER_SIZE idle buffers of each of MAX_SIZES capacities up to MAX_POOLED_CAPACITY;
+ * anything else is allocated and left to the GC as before.
+ */
+final class BufferPool {
+
+    static final int MAX_POOLED_CAPACITY = 4 * 1024 * 1024;
+    private static final int MAX_SIZES = 32;
+    private static final int MAX_BUFFERS_PER_SIZE = 64;
+
+    // Copied on write, so the lookup on every take and release needs no lock
+    private static volatile Bucket[] buckets = new Bucket[0];
+
+    private BufferPool() {
+    }
+
+    // A heap buffer with an accessible array, cleared, with exactly capacity bytes remaining
+    static ByteBuffer heap(int capacity) {
+        return take(capacity, false);
+    }
+
+    // A direct buffer, cleared, with exactly capacity bytes remaining
+    static ByteBuffer direct(int capacity) {
+        return take(capacity, true);
+    }
+
+    // The array of a pooled heap buffer, for code that works on byte arrays; give it back with release(byte[])
+    static byte[] array(int length) {
+        return take(length, false).array();
+    }
+
+    static void release(byte[] array) {
+        if (array != null) {
+            release(ByteBuffer.wrap(array));
+        }
+    }
+
+    // Returns a buffer from heap or direct for reuse. The caller must not touch it, or anything sliced
+    // from it, afterwards. Null is ignored, so release can go in a finally block unconditionally.
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > MAX_POOLED_CAPACITY || buffer.isReadOnly()
+                || (!buffer.isDirect() && buffer.arrayOffset() != 0)) {
+            return;
+        }
+        Bucket bucket = bucket(buffer.capacity(), buffer.isDirect(), true);
+        if (bucket != null) {
+            bucket.offer(buffer);
+        }
+    }
+
+    private static ByteBuffer take(int capacity, boolean direct) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative buffer capacity: " + capacity);
+        }
+        Bucket bucket = capacity <= MAX_POOLED_CAPACITY ? bucket(capacity, direct, false) : null;
+        ByteBuffer buffer = bucket != null ? bucket.poll() : null;
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        return buffer.clear();
+    }
+
+    // The bucket for buffers of this capacity and kind, added if create is set and there is room
+    private static Bucket bucket(int capacity, boolean direct, boolean create) {
+        for (Bucket bucket : buckets) {
+            if (bucket.capacity == capacity && bucket.direct == direct) {
+                return bucket;
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        synchronized (BufferPool.class) {
+            Bucket[] current = buckets;
+            for (Bucket bucket : current) {
+                if (bucket.capacity == capacity && bucket.direct == direct) {
+                    return bucket;
+                }
+            }
+            if (current.length == MAX_SIZES) {
+                return null;
+            }
+            Bucket[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = new Bucket(capacity, direct);
+            buckets = grown;
+            return grown[current.length];
+        }
+    }
+
+    private static final class Bucket {
+        final int capacity;
+        final boolean direct;
+        private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>(MAX_BUFFERS_PER_SIZE);
+
+        Bucket(int capacity, boolean direct) {
+            this.capacity = capacity;
+            this.direct = direct;
+        }
+
+        synchronized ByteBuffer poll() {
+            return idle.pollLast();
+        }
+
+        synchronized void offer(ByteBuffer buffer) {
+            if (idle.size() < MAX_BUFFERS_PER_SIZE) {
+                idle.addLast(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksum trailer of compressed files. The codecs' own formats record the original length but
+ * nothing that catches a flipped bit, and a damaged Huffman stream decodes to garbage rather than
+ * failing; this trailer follows the compressed data and lets the file be checked at I/O speed,
+ * without decoding it.
+ *
+ * Layout: the CRC32C of every chunkSize bytes of the file before the trailer (the last chunk may be
+ * shorter), then the chunk size, the stored length (bytes before the trailer), the original
+ * uncompressed length and magic "ZGK1". Stream decoders stop at the end of their own data, so
+ * readers that predate the trailer still decompress these files.
+ */
+final class Checksums {
+
+    static final int MAGIC = 0x5A474B31; // "ZGK1"
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int FIXED_SIZE = 24;
+
+    // Chunks checked by one worker task when a large range is verified in parallel
+    private static final int CHUNKS_PER_TASK = 64;
+
+    private Checksums() {
+    }
+
+    // Checks a whole file against its trailer; false, with nothing checked, for a file without one
+    static boolean verify(Path file) throws IOException {
+        MappedFile mapped;
+        Trailer trailer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            trailer = Trailer.read(channel);
+            if (trailer == null) {
+                return false;
+            }
+            mapped = new MappedFile(channel);
+        }
+        trailer.verifyAll(mapped);
+        return true;
+    }
+
+    // Collects the CRC32C of every chunk of the bytes passed to update, in order
+    static final class Builder {
+        private final int chunkSize;
+        private final CRC32C crc = new CRC32C();
+        private int[] checksums = new int[16];
+        private int count;
+        private int filled;
+        private long storedLength;
+
+        Builder() {
+            this(DEFAULT_CHUNK_SIZE);
+        }
+
+        Builder(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        // Adds the remaining bytes of data without consuming them
+        void update(ByteBuffer data) {
+            ByteBuffer rest = data.duplicate();
+            while (rest.hasRemaining()) {
+                int n = Math.min(rest.remaining(), chunkSize - filled);
+                int limit = rest.limit();
+                rest.limit(rest.position() + n);
+                crc.update(rest);
+                rest.limit(limit);
+                added(n);
+            }
+        }
+
+        void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, chunkSize - filled);
+                crc.update(b, off, n);
+                off += n;
+                len -= n;
+                added(n);
+            }
+        }
+
+        private void added(int n) {
+            filled += n;
+            storedLength += n;
+            if (filled == chunkSize) {
+                endChunk();
+            }
+        }
+
+        private void endChunk() {
+            if (count == checksums.length) {
+                checksums = Arrays.copyOf(checksums, count * 2);
+            }
+            checksums[count++] = (int) crc.getValue();
+            crc.reset();
+            filled = 0;
+        }
+
+        // The trailer for everything added so far, ready to write after it
+        ByteBuffer trailer(long originalLength) {
+            if (filled > 0) {
+                endChunk();
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(count * 4 + FIXED_SIZE);
+            for (int i = 0; i < count; i++) {
+                trailer.putInt(checksums[i]);
+            }
+            return trailer.putInt(chunkSize).putLong(storedLength).putLong(originalLength).putInt(MAGIC).flip();
+        }
+    }
+
+    // Passes writes through and appends the trailer on finish; closing it without finish writes none
+    static final class ChecksumOutputStream extends FilterOutputStream {
+        private final Builder builder = new Builder();
+
+        ChecksumOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            builder.update(b, off, len);
+            out.write(b, off, len);
+        }
+
+        void finish(long originalLength) throws IOException {
+            ByteBuffer trailer = builder.trailer(originalLength);
+            out.write(trailer.array(), 0, trailer.remaining());
+            out.flush();
+        }
+    }
+
+    // A trailer read back from a file, checked against the file's size
+    static final class Trailer {
+        final int chunkSize;
+        final long storedLength;
+        final long originalLength;
+        private final int[] checksums;
+
+        private Trailer(int chunkSize, long storedLength, long originalLength, int[] checksums) {
+            this.chunkSize = chunkSize;
+            this.storedLength = storedLength;
+            this.originalLength = originalLength;
+            this.checksums = checksums;
+        }
+
+        // The file's trailer, or null for a file written without one. Compressed data that happens to
+        // end in the magic does not add up to a trailer, so a file that fails the size check has none.
+        static Trailer read(FileChannel in) throws IOException {
+            long size = in.size();
+            if (size < FIXED_SIZE) {
+                return null;
+            }
+            ByteBuffer fixed = ByteBuffer.wrap(IoUtils.readFully(in, size - FIXED_SIZE, FIXED_SIZE));
+            if (fixed.getInt(FIXED_SIZE - 4) != MAGIC) {
+                return null;
+            }
+            int chunkSize = fixed.getInt();
+            long storedLength = fixed.getLong();
+            long originalLength = fixed.getLong();
+            long count = chunkSize > 0 && storedLength >= 0 ? (storedLength + chunkSize - 1) / chunkSize : -1;
+            if (count < 0 || originalLength < 0 || count > Integer.MAX_VALUE / 4
+                    || storedLength + count * 4 + FIXED_SIZE != size) {
+                return null;
+            }
+            ByteBuffer stored = ByteBuffer.wrap(IoUtils.readFully(in, storedLength, (int) count * 4));
+            int[] checksums = new int[(int) count];
+            for (int i = 0; i < checksums.length; i++) {
+                checksums[i] = stored.getInt();
+            }
+            return new Trailer(chunkSize, storedLength, originalLength, checksums);
+        }
+
+        // Checks every chunk that overlaps bytes from..to of the stored data, large ranges in parallel
+        void verify(MappedFile mapped, long from, long to) throws IOException {
+            if (from >= to) {
+                return;
+            }
+            int first = (int) (Math.max(from, 0) / chunkSize);
+            int last = (int) ((Math.min(to, storedLength) - 1) / chunkSize);
+            if (last - first < CHUNKS_PER_TASK) {
+                verifyChunks(mapped, first, last);
+                return;
+            }
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int start = first; start <= last; start += CHUNKS_PER_TASK) {
+                int taskFirst = start;
+                int taskLast = Math.min(start + CHUNKS_PER_TASK - 1, last);
+                tasks.add(() -> {
+                    verifyChunks(mapped, taskFirst, taskLast);
+                    return null;
+                });
+            }
+            IoUtils.invokeAll(ForkJoinPool.commonPool(), tasks);
+        }
+
+        void verifyAll(MappedFile mapped) throws IOException {
+            verify(mapped, 0, storedLength);
+        }
+
+        private void verifyChunks(MappedFile mapped, int first, int last) throws IOException {
+            CRC32C crc = new CRC32C();
+            for (int chunk = first; chunk <= last; chunk++) {
+                long position = (long) chunk * chunkSize;
+                int length = (int) Math.min(chunkSize, storedLength - position);
+                crc.reset();
+                crc.update(mapped.slice(position, length));
+                if ((int) crc.getValue() != checksums[chunk]) {
+                    throw new IOException("Checksum mismatch in bytes " + position + "-" + (position + length - 1)
+                            + " of the compressed file");
+                }
+            }
+        }
+
+        // Checks an uncompressed length, from a decompression or a format's own header, against the trailer's
+        void checkLength(long length) throws IOException {
+            if (length != originalLength) {
+                throw new IOException("Uncompressed length " + length + " does not match the " + originalLength
+                        + " recorded in the checksum trailer");
+            }
+        }
+    }
+}
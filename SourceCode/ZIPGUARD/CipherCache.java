@@ -0,0 +1,51 @@
+package ZIPGUARD;
+
+import java.security.*;
+import java.util.*;
+import javax.crypto.*;
+
+// Per-thread Cipher, Mac and KeyGenerator instances. getInstance walks the security providers on every
+// call, which costs more than encrypting a small file, and none of the three is thread-safe, so each
+// thread keeps one of each per algorithm. Callers re-initialize the instance before every use and
+// must finish with it before anything else on the thread can ask for the same transformation.
+final class CipherCache {
+
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyGenerator>> KEY_GENERATORS = ThreadLocal.withInitial(HashMap::new);
+
+    private CipherCache() {
+    }
+
+    static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    static Mac mac(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Mac> macs = MACS.get();
+        Mac mac = macs.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            macs.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    // A fresh random key; initializing a cached generator only sets its key size and random source
+    static SecretKey generateKey(String algorithm, int keySize) throws NoSuchAlgorithmException {
+        Map<String, KeyGenerator> generators = KEY_GENERATORS.get();
+        KeyGenerator generator = generators.get(algorithm);
+        if (generator == null) {
+            generator = KeyGenerator.getInstance(algorithm);
+            generators.put(algorithm, generator);
+        }
+        generator.init(keySize, AesUtils.RANDOM);
+        return generator.generateKey();
+    }
+}
@@ -0,0 +1,275 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Instance-based Huffman codec. All working state lives on the stack of each call, so a single
+ * codec can be shared by any number of threads and reused for any number of files.
+ *
+ * Compressed layout: magic "ZGH1", 64-bit symbol count, the code-length table, then the codes.
+ * A codec built with a HuffmanDictionary compresses in a single pass against the dictionary's table
+ * and writes magic "ZGHD", the dictionary id and the 64-bit symbol count in place of the table.
+ *
+ * Without a dictionary the first pass also decides, through BlockModes, whether Huffman coding pays
+ * off at all. Input that it cannot shrink is written as magic "ZGHM", the mode (stored or
+ * run-length), the 64-bit length and the stored or run-length payload.
+ */
+public final class HuffmanCodec {
+
+    // Size of the read and write buffers used while streaming a file through the codec
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x5A474831; // "ZGH1"
+    private static final int DICTIONARY_MAGIC = 0x5A474844; // "ZGHD"
+    private static final int MODE_MAGIC = 0x5A47484D; // "ZGHM"
+
+    private final int bufferSize;
+    private final HuffmanDictionary dictionary;
+
+    public HuffmanCodec() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public HuffmanCodec(int bufferSize) {
+        this(bufferSize, null);
+    }
+
+    public HuffmanCodec(HuffmanDictionary dictionary) {
+        this(DEFAULT_BUFFER_SIZE, dictionary);
+    }
+
+    // A null dictionary gives a codec that stores a table built for each file
+    public HuffmanCodec(int bufferSize, HuffmanDictionary dictionary) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.dictionary = dictionary;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public HuffmanDictionary getDictionary() {
+        return dictionary;
+    }
+
+    // A file written here ends with a Checksums trailer, which the stream methods leave out
+    public void compress(Path input, Path output) throws IOException {
+        MappedFile mapped;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            mapped = new MappedFile(channel);
+        }
+        try (Checksums.ChecksumOutputStream out = new Checksums.ChecksumOutputStream(Files.newOutputStream(output))) {
+            compress(mapped, out);
+            out.finish(mapped.size());
+        }
+    }
+
+    // Compression of raw bytes over a memory mapping of the input, in two passes or in one with a
+    // dictionary. The file is never copied onto the heap, and heap use is bounded by bufferSize.
+    // The output stream is flushed but left open.
+    public void compress(Path input, OutputStream output) throws IOException {
+        MappedFile mapped;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            mapped = new MappedFile(channel);
+        }
+        compress(mapped, output);
+    }
+
+    // Compresses the remaining bytes of data, which is left unchanged; the same format as a file
+    public void compress(ByteBuffer data, OutputStream output) throws IOException {
+        compress(new MappedFile(data), output);
+    }
+
+    // The output buffer comes from BufferPool, so compressing many small files allocates next to nothing
+    private void compress(MappedFile mapped, OutputStream output) throws IOException {
+        byte[] buffer = BufferPool.array(Math.max(bufferSize, 8));
+        try (OperationTimer timer = Metrics.start(Metrics.HUFFMAN_COMPRESS)) {
+            compress(mapped, output, buffer, timer);
+            timer.complete();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private void compress(MappedFile mapped, OutputStream output, byte[] buffer, OperationTimer timer) throws IOException {
+        long symbolCount = mapped.size();
+        timer.addBytesIn(symbolCount);
+
+        BitOutputStream bitOut = new BitOutputStream(timer.timeWrites(output), buffer);
+        HuffmanTable table;
+        if (dictionary != null) {
+            // Single pass: the dictionary's table is already built
+            table = dictionary.table();
+            bitOut.writeBits(DICTIONARY_MAGIC, 32);
+            bitOut.writeBits(dictionary.getId(), 32);
+            bitOut.writeBits(symbolCount, 64);
+        } else {
+            // First pass: byte histogram and run lengths, straight from the page cache
+            BlockModes.Scan scan = new BlockModes.Scan();
+            for (long position = 0; position < symbolCount; position += MappedFile.MAX_SLICE) {
+                BlockModes.scan(mapped.slice(position, (int) Math.min(MappedFile.MAX_SLICE, symbolCount - position)), scan);
+            }
+            timer.phase("frequency-count");
+
+            int mode = BlockModes.choose(scan);
+            timer.phase("tree-build");
+            if (mode != BlockModes.HUFFMAN) {
+                bitOut.writeBits(MODE_MAGIC, 32);
+                bitOut.writeBits(mode, 8);
+                bitOut.writeBits(symbolCount, 64);
+                if (mode == BlockModes.RLE) {
+                    for (long position = 0; position < symbolCount; position += MappedFile.MAX_SLICE) {
+                        BlockModes.writeRle(mapped.slice(position, (int) Math.min(MappedFile.MAX_SLICE, symbolCount - position)), bitOut);
+                    }
+                    bitOut.finish();
+                } else {
+                    bitOut.finish();
+                    copy(mapped, timer.timeWrites(output), buffer);
+                }
+                timer.phase("encode");
+                return;
+            }
+            table = scan.table;
+
+            bitOut.writeBits(MAGIC, 32);
+            bitOut.writeBits(symbolCount, 64);
+            table.writeTo(bitOut);
+        }
+
+        // Second pass, or the only one with a dictionary: encode from the mapping
+        for (long position = 0; position < symbolCount; position += MappedFile.MAX_SLICE) {
+            ByteBuffer chunk = mapped.slice(position, (int) Math.min(MappedFile.MAX_SLICE, symbolCount - position));
+            for (int i = 0, n = chunk.limit(); i < n; i++) {
+                table.encode(bitOut, chunk.get(i) & 0xFF);
+            }
+        }
+        bitOut.finish();
+        timer.phase("encode");
+    }
+
+    // True for the magic of any of this codec's formats
+    static boolean isHuffmanMagic(int magic) {
+        return magic == MAGIC || magic == DICTIONARY_MAGIC || magic == MODE_MAGIC;
+    }
+
+    // Stored mode: the mapped input goes to the output in copies through buffer, which is free by now
+    private void copy(MappedFile mapped, OutputStream output, byte[] buffer) throws IOException {
+        InputStream in = mapped.newInputStream(0);
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        output.flush();
+    }
+
+    // Checks the file against its Checksums trailer, if it has one, before decoding
+    public void decompress(Path input, Path output) throws IOException {
+        MappedFile mapped;
+        Checksums.Trailer trailer;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            mapped = new MappedFile(channel);
+            trailer = Checksums.Trailer.read(channel);
+        }
+        if (trailer != null) {
+            trailer.verifyAll(mapped);
+        }
+        try (OutputStream out = Files.newOutputStream(output)) {
+            decompress(mapped.newInputStream(0), out);
+        }
+        if (trailer != null) {
+            trailer.checkLength(Files.size(output));
+        }
+    }
+
+    // Table-driven decoding with bulk reads and writes of bufferSize, through buffers from BufferPool.
+    // Neither stream is closed.
+    public void decompress(InputStream input, OutputStream output) throws IOException {
+        byte[] readBuffer = BufferPool.array(bufferSize);
+        byte[] writeBuffer = BufferPool.array(bufferSize);
+        try (OperationTimer timer = Metrics.start(Metrics.HUFFMAN_DECOMPRESS)) {
+            decompress(input, output, readBuffer, writeBuffer, timer);
+            timer.complete();
+        } finally {
+            BufferPool.release(readBuffer);
+            BufferPool.release(writeBuffer);
+        }
+    }
+
+    private void decompress(InputStream input, OutputStream output, byte[] readBuffer, byte[] buffer, OperationTimer timer)
+            throws IOException {
+        BitInputStream bitIn = new BitInputStream(timer.timeReads(input), readBuffer);
+        int magic = bitIn.readBits(32);
+        if (magic == MODE_MAGIC) {
+            decompressMode(bitIn, output, buffer, timer);
+            return;
+        }
+        if (magic != MAGIC && magic != DICTIONARY_MAGIC) {
+            throw new IOException("Not a ZipGuard compressed file");
+        }
+        HuffmanDictionary fileDictionary = magic == DICTIONARY_MAGIC ? findDictionary(bitIn.readBits(32)) : null;
+        long remaining = ((long) bitIn.readBits(32) << 32) | (bitIn.readBits(32) & 0xFFFFFFFFL);
+        if (remaining < 0) {
+            throw new IOException("Corrupt compressed file header");
+        }
+        HuffmanTable table = fileDictionary != null ? fileDictionary.table() : HuffmanTable.readFrom(bitIn);
+        timer.phase("tree-build");
+
+        OutputStream out = timer.timeWrites(output);
+        int count = 0;
+        for (; remaining > 0; remaining--) {
+            buffer[count++] = (byte) table.decode(bitIn);
+            if (count == buffer.length) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+        out.write(buffer, 0, count);
+        out.flush();
+        timer.phase("decode");
+        timer.addBytesIn(timer.bytesRead());
+    }
+
+    // Stored and run-length streams, written when Huffman coding would not have made the input smaller
+    private void decompressMode(BitInputStream bitIn, OutputStream output, byte[] buffer, OperationTimer timer)
+            throws IOException {
+        int mode = bitIn.readBits(8);
+        long remaining = ((long) bitIn.readBits(32) << 32) | (bitIn.readBits(32) & 0xFFFFFFFFL);
+        if (remaining < 0 || (mode != BlockModes.STORED && mode != BlockModes.RLE)) {
+            throw new IOException("Corrupt compressed file header");
+        }
+        OutputStream out = timer.timeWrites(output);
+        if (mode == BlockModes.RLE) {
+            BlockModes.readRle(bitIn, buffer, remaining, out);
+        } else {
+            while (remaining > 0) {
+                int read = bitIn.readBytes(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < Math.min(buffer.length, remaining)) {
+                    throw new EOFException("Unexpected end of compressed data");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        out.flush();
+        timer.phase("decode");
+        timer.addBytesIn(timer.bytesRead());
+    }
+
+    // This codec's dictionary if it has the id, otherwise any loaded dictionary that does
+    private HuffmanDictionary findDictionary(int id) throws IOException {
+        if (dictionary != null && dictionary.getId() == id) {
+            return dictionary;
+        }
+        HuffmanDictionary loaded = HuffmanDictionary.cached(id);
+        if (loaded == null) {
+            throw new IOException(String.format("Compressed with dictionary %08x, which is not loaded", id));
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,156 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A static Huffman table trained once over a sample corpus and shared by many files. Files
+ * compressed against a dictionary carry only its 32-bit id instead of their own table, and neither
+ * side builds a tree per file, which is what dominates for small JSON and log records.
+ *
+ * Every byte value gets a code, so any input can be compressed against any dictionary; bytes the
+ * samples never contained just get long codes. The id is a CRC-32 of the table, so it changes
+ * whenever the codes do.
+ *
+ * Dictionary file: magic "ZGD1", id, name (modified UTF-8), then the code-length table.
+ */
+public final class HuffmanDictionary {
+
+    public static final String EXTENSION = ".zgdict";
+
+    private static final int MAGIC = 0x5A474431; // "ZGD1"
+    private static final int CACHE_CAPACITY = 16;
+
+    private static final class Entry {
+        final HuffmanDictionary dictionary;
+        final FileTime lastModified;
+
+        Entry(HuffmanDictionary dictionary, FileTime lastModified) {
+            this.dictionary = dictionary;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // Dictionaries loaded from disk, least recently used first; guarded by the map itself
+    private static final Map<Path, Entry> CACHE = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    private final String name;
+    private final HuffmanTable table;
+    private final int id;
+
+    private HuffmanDictionary(String name, HuffmanTable table) throws IOException {
+        for (int symbol = 0; symbol < HuffmanTable.MAX_SYMBOLS; symbol++) {
+            if (table.codeLength(symbol) == 0) {
+                throw new IOException("Dictionary " + name + " has no code for byte " + symbol);
+            }
+        }
+        this.name = name;
+        this.table = table;
+        this.id = checksum(table);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    HuffmanTable table() {
+        return table;
+    }
+
+    // Counts byte frequencies over all samples; every byte value is counted at least once
+    public static HuffmanDictionary train(String name, Collection<Path> samples) throws IOException {
+        long[] frequencies = new long[HuffmanTable.MAX_SYMBOLS];
+        Arrays.fill(frequencies, 1);
+        for (Path sample : samples) {
+            MappedFile mapped;
+            try (FileChannel channel = FileChannel.open(sample, StandardOpenOption.READ)) {
+                mapped = new MappedFile(channel);
+            }
+            for (long position = 0; position < mapped.size(); position += MappedFile.MAX_SLICE) {
+                ByteBuffer chunk = mapped.slice(position, (int) Math.min(MappedFile.MAX_SLICE, mapped.size() - position));
+                for (int i = 0, n = chunk.limit(); i < n; i++) {
+                    frequencies[chunk.get(i) & 0xFF]++;
+                }
+            }
+        }
+        return new HuffmanDictionary(name, HuffmanTable.fromFrequencies(frequencies));
+    }
+
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(id);
+            out.writeUTF(name);
+            BitOutputStream bitOut = new BitOutputStream(out, 1024);
+            table.writeTo(bitOut);
+            bitOut.finish();
+        }
+    }
+
+    // Loads a dictionary file, served from memory until the file changes on disk
+    public static HuffmanDictionary load(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        FileTime lastModified = Files.getLastModifiedTime(path);
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(path);
+            if (entry != null && entry.lastModified.equals(lastModified)) {
+                return entry.dictionary;
+            }
+        }
+
+        HuffmanDictionary dictionary;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a ZipGuard dictionary: " + file);
+            }
+            int id = in.readInt();
+            String name = in.readUTF();
+            dictionary = new HuffmanDictionary(name, HuffmanTable.readFrom(new BitInputStream(in, 1024)));
+            if (dictionary.id != id) {
+                throw new IOException("Dictionary " + file + " is corrupt");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Dictionary " + file + " is truncated", e);
+        }
+        synchronized (CACHE) {
+            CACHE.put(path, new Entry(dictionary, lastModified));
+        }
+        return dictionary;
+    }
+
+    // A loaded dictionary with the given id, or null; lets decompression find the one a file names
+    static HuffmanDictionary cached(int id) {
+        synchronized (CACHE) {
+            for (Entry entry : CACHE.values()) {
+                if (entry.dictionary.id == id) {
+                    return entry.dictionary;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int checksum(HuffmanTable table) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream bitOut = new BitOutputStream(bytes, 1024);
+        table.writeTo(bitOut);
+        bitOut.finish();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        return (int) crc.getValue();
+    }
+}
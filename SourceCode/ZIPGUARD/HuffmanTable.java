@@ -0,0 +1,339 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.util.*;
+
+// Immutable canonical Huffman code over byte symbols, or any other alphabet of fewer than 65536
+// symbols. Holds both the encode tables and the decode lookup tables, so one instance can be shared
+// by any number of threads.
+final class HuffmanTable {
+
+    static final int MAX_SYMBOLS = 256;
+
+    // Longest code a serialized table may hold; files from before code lengths were limited have them
+    static final int MAX_CODE_LENGTH = 63;
+
+    // Longest limit fromFrequencies accepts: its Kraft sums count in units of 2^-maxLength in a long,
+    // and the bit reader peeks at most 32 bits at a time
+    static final int MAX_BUILD_LENGTH = 32;
+
+    // Limit applied by fromFrequencies: every code it builds fits the decode lookup table
+    static final int DEFAULT_MAX_LENGTH = 12;
+
+    // Width of the decode lookup table; codes up to this length decode with a single probe
+    private static final int TABLE_BITS = DEFAULT_MAX_LENGTH;
+
+    private final int[] codeLengths;
+    private final long[] codes;
+    private final int[] table;         // (symbol << 8) | length for every TABLE_BITS-bit window, 0 for longer codes
+    private final int[] lengthCount;   // Number of codes of each length, for decodeSlow
+    private final int[] sortedSymbols; // Symbols ordered by (code length, symbol), for decodeSlow
+
+    private HuffmanTable(int[] codeLengths) throws IOException {
+        this.codeLengths = codeLengths;
+        this.codes = buildCanonicalCodes(codeLengths);
+        this.table = new int[1 << TABLE_BITS];
+        this.lengthCount = new int[MAX_CODE_LENGTH + 1];
+        this.sortedSymbols = new int[codeLengths.length];
+
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            int length = codeLengths[symbol];
+            if (length == 0) {
+                continue;
+            }
+            lengthCount[length]++;
+            if (length <= TABLE_BITS) {
+                int first = (int) codes[symbol] << (TABLE_BITS - length);
+                Arrays.fill(table, first, first + (1 << (TABLE_BITS - length)), (symbol << 8) | length);
+            }
+        }
+        int[] offsets = new int[MAX_CODE_LENGTH + 1];
+        for (int length = 1; length < MAX_CODE_LENGTH; length++) {
+            offsets[length + 1] = offsets[length] + lengthCount[length];
+        }
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            if (codeLengths[symbol] != 0) {
+                sortedSymbols[offsets[codeLengths[symbol]]++] = symbol;
+            }
+        }
+    }
+
+    // Builds the optimal code for a histogram with codes of at most DEFAULT_MAX_LENGTH bits; the
+    // alphabet is 0 .. frequencies.length - 1
+    static HuffmanTable fromFrequencies(long[] frequencies) {
+        return fromFrequencies(frequencies, DEFAULT_MAX_LENGTH);
+    }
+
+    // Builds a code with no code longer than maxLength bits, optimal under that limit or very close
+    // to it. Works on one sorted array of packed (frequency, symbol) keys: no tree, no per-symbol
+    // objects, and only a handful of arrays per table.
+    static HuffmanTable fromFrequencies(long[] frequencies, int maxLength) {
+        int symbolBits = symbolBits(frequencies.length);
+        if (maxLength < 1 || maxLength > MAX_BUILD_LENGTH) {
+            throw new IllegalArgumentException("Maximum code length must be between 1 and " + MAX_BUILD_LENGTH + ": " + maxLength);
+        }
+
+        // Frequencies are scaled down, never to zero, until every key and their sum fit in a long
+        long maxFrequency = 0;
+        int used = 0;
+        for (long frequency : frequencies) {
+            if (frequency < 0) {
+                throw new IllegalArgumentException("Negative frequency: " + frequency);
+            }
+            if (frequency != 0) {
+                maxFrequency = Math.max(maxFrequency, frequency);
+                used++;
+            }
+        }
+        if (used > 1L << maxLength) {
+            throw new IllegalArgumentException(used + " symbols do not fit in codes of " + maxLength + " bits");
+        }
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(maxFrequency) - (62 - symbolBits));
+
+        // Keys sort by frequency, then by symbol, so equal frequencies always get the same codes
+        long[] keys = new long[used];
+        for (int symbol = 0, i = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] != 0) {
+                keys[i++] = (Math.max(frequencies[symbol] >>> shift, 1) << symbolBits) | symbol;
+            }
+        }
+        Arrays.sort(keys);
+
+        long[] lengths = new long[used];
+        for (int i = 0; i < used; i++) {
+            lengths[i] = keys[i] >>> symbolBits;
+        }
+        computeCodeLengths(lengths);
+        int[] lengthCount = limitCodeLengths(lengths, maxLength);
+
+        // The most frequent symbols, at the end of keys, take the shortest codes
+        int[] codeLengths = new int[frequencies.length];
+        int i = used - 1;
+        for (int length = 1; length <= maxLength; length++) {
+            for (int n = lengthCount[length]; n > 0; n--) {
+                codeLengths[(int) (keys[i--] & ((1L << symbolBits) - 1))] = length;
+            }
+        }
+        try {
+            return new HuffmanTable(codeLengths);
+        } catch (IOException e) {
+            throw new IllegalStateException("Huffman construction produced invalid code lengths", e);
+        }
+    }
+
+    // In-place minimum-redundancy code lengths (Moffat and Katajainen). On entry a holds weights in
+    // ascending order; on return a[i] is the code length of the i-th of them. The same array holds
+    // the weights, then the parent links of the internal nodes, then their depths.
+    private static void computeCodeLengths(long[] a) {
+        int n = a.length;
+        if (n == 0) {
+            return;
+        }
+        if (n == 1) {
+            a[0] = 1; // A lone symbol still needs a 1-bit code
+            return;
+        }
+
+        // First pass, left to right: combine the two lightest of the remaining leaves and internal
+        // nodes, leaving each consumed internal node pointing at its parent
+        a[0] += a[1];
+        int root = 0;
+        int leaf = 2;
+        for (int next = 1; next < n - 1; next++) {
+            if (leaf >= n || a[root] < a[leaf]) {
+                a[next] = a[root];
+                a[root++] = next;
+            } else {
+                a[next] = a[leaf++];
+            }
+            if (leaf >= n || (root < next && a[root] < a[leaf])) {
+                a[next] += a[root];
+                a[root++] = next;
+            } else {
+                a[next] += a[leaf++];
+            }
+        }
+
+        // Second pass, right to left: internal node depths from the parent links
+        a[n - 2] = 0;
+        for (int next = n - 3; next >= 0; next--) {
+            a[next] = a[(int) a[next]] + 1;
+        }
+
+        // Third pass, right to left: leaf depths from the number of internal nodes at each depth
+        int available = 1;
+        int usedNodes = 0;
+        int depth = 0;
+        root = n - 2;
+        int next = n - 1;
+        while (available > 0) {
+            while (root >= 0 && a[root] == depth) {
+                usedNodes++;
+                root--;
+            }
+            while (available > usedNodes) {
+                a[next--] = depth;
+                available--;
+            }
+            available = 2 * usedNodes;
+            depth++;
+            usedNodes = 0;
+        }
+    }
+
+    // Counts the code lengths, with every length above maxLength cut to maxLength, then restores the
+    // Kraft equality by moving codes down from shorter lengths. Each move turns the deepest code
+    // shorter than maxLength into a node over itself and one of the surplus maxLength codes, which
+    // costs the fewest extra bits. Returns the number of codes of each length.
+    private static int[] limitCodeLengths(long[] lengths, int maxLength) {
+        int[] lengthCount = new int[maxLength + 1];
+        for (long length : lengths) {
+            lengthCount[(int) Math.min(length, maxLength)]++;
+        }
+        if (lengths.length <= 1) {
+            return lengthCount;
+        }
+
+        long kraft = 0;
+        for (int length = 1; length <= maxLength; length++) {
+            kraft += (long) lengthCount[length] << (maxLength - length);
+        }
+        for (; kraft > 1L << maxLength; kraft--) {
+            lengthCount[maxLength]--;
+            for (int length = maxLength - 1; length > 0; length--) {
+                if (lengthCount[length] != 0) {
+                    lengthCount[length]--;
+                    lengthCount[length + 1] += 2;
+                    break;
+                }
+            }
+        }
+        return lengthCount;
+    }
+
+    // Assigns canonical codes: shorter codes first, and codes of equal length in symbol order
+    private static long[] buildCanonicalCodes(int[] codeLengths) throws IOException {
+        int[] lengthCount = new int[MAX_CODE_LENGTH + 1];
+        for (int length : codeLengths) {
+            if (length < 0 || length > MAX_CODE_LENGTH) {
+                throw new IOException("Invalid Huffman code length: " + length);
+            }
+            lengthCount[length]++;
+        }
+        lengthCount[0] = 0;
+
+        long[] nextCode = new long[MAX_CODE_LENGTH + 1];
+        long code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        long[] codes = new long[codeLengths.length];
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            int length = codeLengths[symbol];
+            if (length != 0) {
+                codes[symbol] = nextCode[length]++;
+                if (length < MAX_CODE_LENGTH && codes[symbol] >>> length != 0) {
+                    throw new IOException("Huffman code lengths are over-subscribed");
+                }
+            }
+        }
+        return codes;
+    }
+
+    // Serialized form: used-symbol count, then (symbol, code length) for every used symbol. Symbols
+    // take as many bits as the largest symbol of the alphabet needs, so 8 for bytes.
+    void writeTo(BitOutputStream out) throws IOException {
+        int symbolBits = symbolBits(codeLengths.length);
+        int used = 0;
+        for (int length : codeLengths) {
+            if (length != 0) {
+                used++;
+            }
+        }
+
+        out.writeBits(used, 16);
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            if (codeLengths[symbol] != 0) {
+                out.writeBits(symbol, symbolBits);
+                out.writeBits(codeLengths[symbol], 8);
+            }
+        }
+    }
+
+    static HuffmanTable readFrom(BitInputStream in) throws IOException {
+        return readFrom(in, MAX_SYMBOLS);
+    }
+
+    static HuffmanTable readFrom(BitInputStream in, int alphabetSize) throws IOException {
+        int symbolBits = symbolBits(alphabetSize);
+        int used = in.readBits(16);
+        if (used > alphabetSize) {
+            throw new IOException("Corrupt Huffman table: " + used + " symbols");
+        }
+        int[] codeLengths = new int[alphabetSize];
+        for (int i = 0; i < used; i++) {
+            int symbol = in.readBits(symbolBits);
+            if (symbol >= alphabetSize) {
+                throw new IOException("Corrupt Huffman table: symbol " + symbol);
+            }
+            codeLengths[symbol] = in.readBits(8);
+        }
+        return new HuffmanTable(codeLengths);
+    }
+
+    // Bits needed for the largest symbol of the alphabet
+    private static int symbolBits(int alphabetSize) {
+        return Math.max(32 - Integer.numberOfLeadingZeros(alphabetSize - 1), 1);
+    }
+
+    // Code length of symbol in bits, 0 if the table has no code for it
+    int codeLength(int symbol) {
+        return codeLengths[symbol];
+    }
+
+    void encode(BitOutputStream out, int symbol) throws IOException {
+        out.writeBits(codes[symbol], codeLengths[symbol]);
+    }
+
+    // Decodes one symbol with a single table probe when the code fits in the table
+    int decode(BitInputStream in) throws IOException {
+        int available = in.fill();
+        int entry = table[in.peekBits(TABLE_BITS)];
+        int length = entry & 0xFF;
+
+        if (length != 0 && length <= available) {
+            in.skipBits(length);
+            return entry >>> 8;
+        }
+        int symbol = decodeSlow(in);
+        if (symbol == -1) {
+            throw new IOException("Compressed data is truncated or corrupt");
+        }
+        return symbol;
+    }
+
+    // Decodes one symbol a bit at a time from the canonical code structure, for codes longer than
+    // the lookup table. Returns -1 if the input ends or the bits do not form a valid code.
+    private int decodeSlow(BitInputStream in) throws IOException {
+        long code = 0;
+        long first = 0;
+        int index = 0;
+        for (int length = 1; length < lengthCount.length; length++) {
+            int bit = in.readBit();
+            if (bit == -1) {
+                return -1;
+            }
+            code |= bit;
+            int count = lengthCount[length];
+            if (code - first < count) {
+                return sortedSymbols[index + (int) (code - first)];
+            }
+            index += count;
+            first = (first + count) << 1;
+            code <<= 1;
+        }
+        return -1;
+    }
+}
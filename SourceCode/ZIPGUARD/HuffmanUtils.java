@@ -1,244 +1,189 @@
 package ZIPGUARD;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 
+// File-path entry points for Huffman compression; the work is done by a HuffmanCodec
 public class HuffmanUtils {
 
-    private static class Node implements Comparable<Node> {
-        char ch;
-        int frequency;
-        Node left, right;
+    // Size of the read and write buffers used while streaming a file through the codec
+    public static final int DEFAULT_BUFFER_SIZE = HuffmanCodec.DEFAULT_BUFFER_SIZE;
 
-        Node(char ch, int frequency) {
-            this.ch = ch;
-            this.frequency = frequency;
-            left = right = null;
-        }
-
-        Node(int frequency, Node left, Node right) {
-            this.ch = '\0';
-            this.frequency = frequency;
-            this.left = left;
-            this.right = right;
-        }
+    // Shared by all callers: the codec keeps no state between calls
+    private static final HuffmanCodec DEFAULT_CODEC = new HuffmanCodec();
 
-        @Override
-        public int compareTo(Node node) {
-            return this.frequency - node.frequency;
-        }
+    public static void compressFile(String inputFilePath) throws IOException {
+        compressFile(inputFilePath, DEFAULT_CODEC);
     }
 
-    private static class BitInputStream implements AutoCloseable {
-        private FileInputStream in;
-        private int currentByte;
-        private int numBitsRemaining;
-
-        public BitInputStream(FileInputStream in) {
-            this.in = in;
-            this.currentByte = 0;
-            this.numBitsRemaining = 0;
-        }
+    public static void compressFile(String inputFilePath, int bufferSize) throws IOException {
+        compressFile(inputFilePath, new HuffmanCodec(bufferSize));
+    }
 
-        public int readBit() throws IOException {
-            if (numBitsRemaining == 0) {
-                currentByte = in.read();
-                if (currentByte == -1) {
-                    return -1;
-                }
-                numBitsRemaining = 8;
-            }
+    private static void compressFile(String inputFilePath, HuffmanCodec codec) throws IOException {
+        String fileNameWithoutExtension = inputFilePath.substring(0, inputFilePath.lastIndexOf('.'));
+        String compressedFilePath = fileNameWithoutExtension + "_compressed.dat";
 
-            numBitsRemaining--;
-            return (currentByte >> numBitsRemaining) & 1;
-        }
+        codec.compress(Paths.get(inputFilePath), Paths.get(compressedFilePath));
 
-        @Override
-        public void close() throws IOException {
-            in.close();
-        }
+        System.out.println("File compressed successfully as: " + compressedFilePath);
     }
 
-    private static class BitOutputStream implements AutoCloseable {
-        private FileOutputStream out;
-        private int currentByte;
-        private int numBitsFilled;
-
-        public BitOutputStream(FileOutputStream out) {
-            this.out = out;
-            this.currentByte = 0;
-            this.numBitsFilled = 0;
-        }
+    // Compresses in independent blocks on all cores; decompressFile recognizes the block format
+    public static void compressFileParallel(String inputFilePath) throws IOException {
+        String fileNameWithoutExtension = inputFilePath.substring(0, inputFilePath.lastIndexOf('.'));
+        String compressedFilePath = fileNameWithoutExtension + "_compressed.dat";
 
-        public void writeBit(boolean bit) throws IOException {
-            if (bit) {
-                currentByte |= (1 << (7 - numBitsFilled));
-            }
-            numBitsFilled++;
-            if (numBitsFilled == 8) {
-                out.write(currentByte);
-                numBitsFilled = 0;
-                currentByte = 0;
-            }
-        }
+        new BlockHuffmanCodec().compress(Paths.get(inputFilePath), Paths.get(compressedFilePath));
 
-        @Override
-        public void close() throws IOException {
-            if (numBitsFilled > 0) {
-                out.write(currentByte);
-            }
-            out.close();
-        }
+        System.out.println("File compressed successfully as: " + compressedFilePath);
     }
 
-    private static Map<Character, String> huffmanCodeMap = new HashMap<>();
-    private static Map<Character, Integer> frequencyMap = new HashMap<>();
-
-    private static void generateCodes(Node root, String code) {
-        if (root == null) {
-            return;
-        }
+    // LZ77 + Huffman at the given level (1-9); decompressFile recognizes this format too
+    public static void compressFileLz(String inputFilePath, int level) throws IOException {
+        String fileNameWithoutExtension = inputFilePath.substring(0, inputFilePath.lastIndexOf('.'));
+        String compressedFilePath = fileNameWithoutExtension + "_compressed.dat";
 
-        if (root.left == null && root.right == null) {
-            huffmanCodeMap.put(root.ch, code);
-        }
+        new LzHuffmanCodec(level).compress(Paths.get(inputFilePath), Paths.get(compressedFilePath));
 
-        generateCodes(root.left, code + "0");
-        generateCodes(root.right, code + "1");
+        System.out.println("File compressed successfully as: " + compressedFilePath);
     }
 
-    private static Node buildHuffmanTree() {
-        PriorityQueue<Node> pq = new PriorityQueue<>();
+    public static void decompressFile(String compressedFilePath) throws IOException {
+        decompressFile(compressedFilePath, DEFAULT_CODEC);
+    }
 
-        for (Map.Entry<Character, Integer> entry : frequencyMap.entrySet()) {
-            pq.offer(new Node(entry.getKey(), entry.getValue()));
-        }
+    public static void decompressFile(String compressedFilePath, int bufferSize) throws IOException {
+        decompressFile(compressedFilePath, new HuffmanCodec(bufferSize));
+    }
 
-        while (pq.size() > 1) {
-            Node left = pq.poll();
-            Node right = pq.poll();
+    private static void decompressFile(String compressedFilePath, HuffmanCodec codec) throws IOException {
+        String fileNameWithoutExtension = compressedFilePath.substring(0, compressedFilePath.lastIndexOf('_'));
+        String decompressedFilePath = fileNameWithoutExtension + "_decompressed.txt";
 
-            int sum = left.frequency + right.frequency;
-            pq.offer(new Node(sum, left, right));
-        }
+        decompress(Paths.get(compressedFilePath), Paths.get(decompressedFilePath), codec);
 
-        return pq.peek();
+        System.out.println("File decompressed successfully as: " + decompressedFilePath);
     }
 
-    private static void writeTree(Node root, BitOutputStream out) throws IOException {
-        if (root == null) {
-            return;
-        }
-
-        if (root.left == null && root.right == null) { // Leaf node
-            out.writeBit(true); // Leaf node indicator
-            for (int i = 7; i >= 0; i--) { // Write character as 8 bits
-                out.writeBit(((root.ch >> i) & 1) == 1);
+    // Picks the block, streamed block, LZ or stream codec from the magic number the file starts with
+    static void decompress(Path input, Path output, HuffmanCodec codec) throws IOException {
+        int magic = readMagic(input);
+        if (BlockHuffmanCodec.isBlockMagic(magic)) {
+            new BlockHuffmanCodec().decompress(input, output);
+        } else if (magic == BlockStream.MAGIC) {
+            try (InputStream in = Files.newInputStream(input);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), codec.getBufferSize())) {
+                BlockStream.decode(in, out);
             }
-        } else { // Internal node
-            out.writeBit(false); // Internal node indicator
-            writeTree(root.left, out); // Write left subtree
-            writeTree(root.right, out); // Write right subtree
+        } else if (magic == LzHuffmanCodec.MAGIC) {
+            new LzHuffmanCodec().decompress(input, output);
+        } else {
+            codec.decompress(input, output);
         }
     }
 
-    private static Node readTree(BitInputStream in) throws IOException {
-        int bit = in.readBit();
-        if (bit == -1) {
-            return null;
-        }
-
-        if (bit == 1) { // Leaf node
-            int ch = 0;
-            for (int i = 0; i < 8; i++) {
-                bit = in.readBit();
-                if (bit == -1) {
-                    return null;
-                }
-                ch = (ch << 1) | bit;
+    // Bytes [offset, offset + length) of the original file, fewer if it ends first. Files from
+    // compressFileParallel decode only the blocks that hold the range; the single-stream formats
+    // have no index and are decoded from the start.
+    public static byte[] readRange(String compressedFilePath, long offset, int length) throws IOException {
+        Path path = Paths.get(compressedFilePath);
+        int magic = readMagic(path);
+        if (BlockHuffmanCodec.isBlockMagic(magic)) {
+            return new BlockHuffmanCodec().readRange(path, offset, length);
+        }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+        }
+        // The stream formats decode from the start whatever the range, so the whole file is checked
+        Checksums.verify(path);
+        RangeOutputStream range = new RangeOutputStream(offset, length);
+        try (InputStream in = Files.newInputStream(path)) {
+            if (magic == BlockStream.MAGIC) {
+                BlockStream.decode(in, range);
+            } else if (magic == LzHuffmanCodec.MAGIC) {
+                new LzHuffmanCodec().decompress(in, range);
+            } else {
+                DEFAULT_CODEC.decompress(in, range);
             }
-            return new Node((char) ch, 0);
-        } else { // Internal node
-            Node left = readTree(in);
-            Node right = readTree(in);
-            return new Node(0, left, right);
         }
+        return range.toByteArray();
     }
 
-    public static void compressFile(String inputFilePath) throws IOException {
-        StringBuilder inputStringBuilder = new StringBuilder();
-        String fileNameWithoutExtension = inputFilePath.substring(0, inputFilePath.lastIndexOf('.'));
-        String compressedFilePath = fileNameWithoutExtension + "_compressed.dat";
+    // Keeps only the bytes written between offset and offset + length
+    private static final class RangeOutputStream extends OutputStream {
+        private final long offset;
+        private final ByteArrayOutputStream bytes;
+        private final int length;
+        private long position;
 
-        try (BufferedReader br = new BufferedReader(new FileReader(inputFilePath))) {
-            int ch;
-            while ((ch = br.read()) != -1) {
-                inputStringBuilder.append((char) ch);
-                frequencyMap.put((char) ch, frequencyMap.getOrDefault((char) ch, 0) + 1);
-            }
+        RangeOutputStream(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+            this.bytes = new ByteArrayOutputStream(Math.min(length, DEFAULT_BUFFER_SIZE));
         }
 
-        Node root = buildHuffmanTree();
-        generateCodes(root, "");
-
-        StringBuilder encodedStringBuilder = new StringBuilder();
-        for (char ch : inputStringBuilder.toString().toCharArray()) {
-            encodedStringBuilder.append(huffmanCodeMap.get(ch));
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
         }
 
-        try (BitOutputStream bitOut = new BitOutputStream(new FileOutputStream(compressedFilePath));
-             BitOutputStream treeOut = new BitOutputStream(new FileOutputStream(fileNameWithoutExtension + "_tree.dat"))) {
-
-            writeTree(root, treeOut); // Write the Huffman tree to a separate file
-
-            for (char bit : encodedStringBuilder.toString().toCharArray()) {
-                bitOut.writeBit(bit == '1');
+        @Override
+        public void write(byte[] b, int off, int len) {
+            long from = Math.max(position, offset);
+            long to = Math.min(position + len, offset + length);
+            if (from < to) {
+                bytes.write(b, off + (int) (from - position), (int) (to - from));
             }
+            position += len;
         }
 
-        System.out.println("File compressed successfully as: " + compressedFilePath);
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
     }
 
-    public static void decompressFile(String compressedFilePath, String treeFilePath) throws IOException {
-        String fileNameWithoutExtension = compressedFilePath.substring(0, compressedFilePath.lastIndexOf('_'));
-        String decompressedFilePath = fileNameWithoutExtension + "_decompressed.txt";
-
-        try (BitInputStream bitIn = new BitInputStream(new FileInputStream(compressedFilePath));
-             BitInputStream treeIn = new BitInputStream(new FileInputStream(treeFilePath));
-             BufferedWriter writer = new BufferedWriter(new FileWriter(decompressedFilePath))) {
-
-            Node root = readTree(treeIn); // Read the Huffman tree
-            Node current = root;
-            int bit;
-
-            while ((bit = bitIn.readBit()) != -1) {
-                current = (bit == 0) ? current.left : current.right;
-
-                if (current.left == null && current.right == null) {
-                    writer.write(current.ch);
-                    current = root; // Reset to root after leaf node
-                }
-            }
+    static int readMagic(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt();
+        } catch (EOFException e) {
+            return 0;
         }
-
-        System.out.println("File decompressed successfully as: " + decompressedFilePath);
     }
 
     public static void main(String[] args) throws IOException {
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Choose an operation (compress/decompress):");
+        System.out.println("Choose an operation (compress/compress-parallel/compress-lz/decompress/read-range):");
         String operation = scanner.nextLine();
 
         if (operation.equalsIgnoreCase("compress")) {
             System.out.print("Enter the file path to compress: ");
             String inputFilePath = scanner.nextLine();
             compressFile(inputFilePath);
+        } else if (operation.equalsIgnoreCase("compress-parallel")) {
+            System.out.print("Enter the file path to compress: ");
+            String inputFilePath = scanner.nextLine();
+            compressFileParallel(inputFilePath);
+        } else if (operation.equalsIgnoreCase("compress-lz")) {
+            System.out.print("Enter the file path to compress: ");
+            String inputFilePath = scanner.nextLine();
+            System.out.print("Enter the compression level (1-9): ");
+            int level = Integer.parseInt(scanner.nextLine().trim());
+            compressFileLz(inputFilePath, level);
         } else if (operation.equalsIgnoreCase("decompress")) {
             System.out.print("Enter the compressed file path: ");
             String compressedFilePath = scanner.nextLine();
-            System.out.print("Enter the tree file path: ");
-            String treeFilePath = scanner.nextLine();
-            decompressFile(compressedFilePath, treeFilePath);
+            decompressFile(compressedFilePath);
+        } else if (operation.equalsIgnoreCase("read-range")) {
+            System.out.print("Enter the compressed file path: ");
+            String compressedFilePath = scanner.nextLine();
+            System.out.print("Enter the offset: ");
+            long offset = Long.parseLong(scanner.nextLine().trim());
+            System.out.print("Enter the length: ");
+            int length = Integer.parseInt(scanner.nextLine().trim());
+            System.out.write(readRange(compressedFilePath, offset, length));
+            System.out.println();
         } else {
             System.out.println("Invalid operation.");
         }
@@ -0,0 +1,484 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.*;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Incremental, deduplicating archive in a directory: a manifest of the archived files and a store
+ * of compressed chunks they are made of. An update only reads files whose size or modification
+ * time changed since the manifest was written; unchanged files keep their manifest entry. Changed
+ * files are cut into content-defined chunks, and only chunks the store does not hold yet are
+ * compressed and written, so an edit in the middle of a file costs the chunks around it, and
+ * identical data in different files is stored once. The time of an update therefore follows the
+ * amount of changed data rather than the total size.
+ *
+ * Chunk boundaries come from a gear rolling hash, so they move with the content instead of with
+ * file offsets: inserting bytes only changes the chunks next to the insertion. Chunks are 16 KB to
+ * 256 KB, 64 KB on average.
+ *
+ * Each chunk is stored as chunks/xx/<hash> in HuffmanCodec format, or as a .zg container when the
+ * archive has a key. With a key, chunk and file hashes are HMAC-SHA256 under that key, so chunk
+ * names do not reveal the content to anyone without it.
+ *
+ * Manifest: magic "ZGM1", key check (32 bytes, zero without a key), file count, then for every
+ * file its name (modified UTF-8), size, modification time in milliseconds, content hash, chunk
+ * count and the hash and length of every chunk. It is replaced atomically at the end of an update.
+ * Chunks that no file references any more stay in the store.
+ */
+public final class IncrementalArchive {
+
+    public static final String MANIFEST = "manifest";
+    public static final String CHUNKS = "chunks";
+
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int AVERAGE_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+
+    private static final int MAGIC = 0x5A474D31; // "ZGM1"
+    private static final int HASH_LENGTH = 32;
+
+    // Cut when the top bits of the gear hash are zero: more bits before the average size, fewer
+    // after it, which keeps chunk sizes close to the average
+    private static final long MASK_SMALL = -1L << (64 - 18);
+    private static final long MASK_LARGE = -1L << (64 - 14);
+
+    private static final long[] GEAR = new SplittableRandom(0x5A47434443L).longs(256).toArray();
+
+    private static final HuffmanCodec CODEC = new HuffmanCodec();
+
+    private static final class Chunk {
+        final byte[] hash;
+        final int length;
+
+        Chunk(byte[] hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final long size;
+        final long lastModified;
+        final byte[] hash;
+        final List<Chunk> chunks;
+
+        Entry(String name, long size, long lastModified, byte[] hash, List<Chunk> chunks) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.chunks = chunks;
+        }
+    }
+
+    // SHA-256, or HMAC-SHA256 under the archive key; either way 32 bytes
+    private static final class Hasher {
+        private final MessageDigest digest;
+        private final Mac mac;
+
+        Hasher(SecretKey secretKey) throws GeneralSecurityException {
+            if (secretKey == null) {
+                digest = MessageDigest.getInstance("SHA-256");
+                mac = null;
+            } else {
+                digest = null;
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256"));
+            }
+        }
+
+        // Hashes the remaining bytes of data without moving its position
+        void update(ByteBuffer data) {
+            if (mac != null) {
+                mac.update(data.duplicate());
+            } else {
+                digest.update(data.duplicate());
+            }
+        }
+
+        // Returns the hash and starts over
+        byte[] finish() {
+            return mac != null ? mac.doFinal() : digest.digest();
+        }
+    }
+
+    // Passes writes through to out and hashes them
+    private static final class HashingOutputStream extends FilterOutputStream {
+        private final Hasher hasher;
+
+        HashingOutputStream(OutputStream out, Hasher hasher) {
+            super(out);
+            this.hasher = hasher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            hasher.update(ByteBuffer.wrap(b, off, len));
+            out.write(b, off, len);
+        }
+    }
+
+    // Counts for the Summary, shared by the worker tasks of one update
+    private static final class Totals {
+        final AtomicLong newChunks = new AtomicLong();
+        final AtomicLong reusedChunks = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesStored = new AtomicLong();
+    }
+
+    // What an update did
+    public static final class Summary {
+        private final int files;
+        private final int unchangedFiles;
+        private final long newChunks;
+        private final long reusedChunks;
+        private final long bytesRead;
+        private final long bytesStored;
+
+        Summary(int files, int unchangedFiles, long newChunks, long reusedChunks, long bytesRead, long bytesStored) {
+            this.files = files;
+            this.unchangedFiles = unchangedFiles;
+            this.newChunks = newChunks;
+            this.reusedChunks = reusedChunks;
+            this.bytesRead = bytesRead;
+            this.bytesStored = bytesStored;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        // Files skipped because their size and modification time matched the manifest
+        public int getUnchangedFiles() {
+            return unchangedFiles;
+        }
+
+        public long getNewChunks() {
+            return newChunks;
+        }
+
+        // Chunks of changed files that the store already held
+        public long getReusedChunks() {
+            return reusedChunks;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        // Compressed size of the new chunks
+        public long getBytesStored() {
+            return bytesStored;
+        }
+    }
+
+    private final Path directory;
+    private final SecretKey secretKey;
+    private final byte[] keyCheck;
+
+    // A null key gives an unencrypted archive. An archive can only be updated and extracted with the
+    // key it was created with.
+    public IncrementalArchive(Path directory, SecretKey secretKey) throws GeneralSecurityException {
+        this.directory = directory;
+        this.secretKey = secretKey;
+        if (secretKey == null) {
+            this.keyCheck = new byte[HASH_LENGTH];
+        } else {
+            Hasher hasher = new Hasher(secretKey);
+            hasher.update(ByteBuffer.wrap("ZIPGUARD archive key".getBytes(StandardCharsets.UTF_8)));
+            this.keyCheck = hasher.finish();
+        }
+    }
+
+    // Brings the archive up to date with the regular files under roots. Files are archived under
+    // their path relative to the parent of their root; files that no longer exist are dropped.
+    public Summary update(Collection<Path> roots, boolean recursive, ExecutorService pool) throws IOException {
+        Map<String, Path> files = new TreeMap<>();
+        for (Path root : roots) {
+            Path base = root.toAbsolutePath().normalize().getParent();
+            List<Path> found = new ArrayList<>();
+            if (Files.isDirectory(root)) {
+                try (Stream<Path> entries = recursive ? Files.walk(root) : Files.list(root)) {
+                    entries.filter(Files::isRegularFile).forEach(found::add);
+                }
+            } else if (Files.isRegularFile(root)) {
+                found.add(root);
+            } else {
+                throw new FileNotFoundException("No such file or directory: " + root);
+            }
+            for (Path file : found) {
+                String name = base.relativize(file.toAbsolutePath().normalize()).toString().replace('\\', '/');
+                if (files.put(name, file) != null) {
+                    throw new IllegalArgumentException("Two inputs would be archived as " + name);
+                }
+            }
+        }
+
+        Map<String, Entry> previous = readManifest();
+        Set<String> knownChunks = ConcurrentHashMap.newKeySet();
+        for (Entry entry : previous.values()) {
+            for (Chunk chunk : entry.chunks) {
+                knownChunks.add(hex(chunk.hash));
+            }
+        }
+
+        Totals totals = new Totals();
+        List<Callable<Entry>> tasks = new ArrayList<>();
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            tasks.add(() -> {
+                BasicFileAttributes attributes = Files.readAttributes(file.getValue(), BasicFileAttributes.class);
+                Entry old = previous.get(file.getKey());
+                if (old != null && old.size == attributes.size()
+                        && old.lastModified == attributes.lastModifiedTime().toMillis()) {
+                    return old;
+                }
+                return store(file.getKey(), file.getValue(), attributes.lastModifiedTime().toMillis(), knownChunks, totals);
+            });
+        }
+        List<Entry> entries = IoUtils.invokeAll(pool, tasks);
+        writeManifest(entries);
+
+        int unchanged = 0;
+        for (Entry entry : entries) {
+            if (previous.get(entry.name) == entry) {
+                unchanged++;
+            }
+        }
+        return new Summary(entries.size(), unchanged, totals.newChunks.get(), totals.reusedChunks.get(),
+                totals.bytesRead.get(), totals.bytesStored.get());
+    }
+
+    // Chunks one file, writing the chunks the store does not have yet, and returns its manifest entry
+    private Entry store(String name, Path file, long lastModified, Set<String> knownChunks, Totals totals)
+            throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.ARCHIVE_UPDATE)) {
+            MappedFile mapped;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = new MappedFile(channel);
+            }
+            long size = mapped.size();
+            Hasher fileHasher = new Hasher(secretKey);
+            Hasher chunkHasher = new Hasher(secretKey);
+            List<Chunk> chunks = new ArrayList<>();
+            for (long position = 0; position < size; ) {
+                ByteBuffer chunk = mapped.slice(position, (int) Math.min(MAX_CHUNK, size - position));
+                chunk.limit(cut(chunk));
+                fileHasher.update(chunk);
+                chunkHasher.update(chunk);
+                byte[] hash = chunkHasher.finish();
+                chunks.add(new Chunk(hash, chunk.limit()));
+                timer.phase("chunk");
+
+                // Another task may be writing the same chunk right now; the manifest is only written
+                // once every task has finished
+                String chunkName = hex(hash);
+                Path chunkFile = chunkFile(chunkName);
+                if (knownChunks.add(chunkName) && !Files.exists(chunkFile)) {
+                    long stored = writeChunk(chunk, chunkFile);
+                    totals.newChunks.incrementAndGet();
+                    totals.bytesStored.addAndGet(stored);
+                    timer.addBytesOut(stored);
+                } else {
+                    totals.reusedChunks.incrementAndGet();
+                }
+                timer.phase("store");
+                position += chunk.limit();
+            }
+            totals.bytesRead.addAndGet(size);
+            timer.addBytesIn(size);
+            timer.complete();
+            return new Entry(name, size, lastModified, fileHasher.finish(), chunks);
+        }
+    }
+
+    // Length of the chunk that starts data: the first gear hash cut point, or all of data if it has none
+    static int cut(ByteBuffer data) {
+        int n = data.limit();
+        if (n <= MIN_CHUNK) {
+            return n;
+        }
+        long hash = 0;
+        int i = MIN_CHUNK;
+        for (int normal = Math.min(AVERAGE_CHUNK, n); i < normal; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xFF];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < n; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xFF];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    // Compresses (and encrypts) one chunk into a temporary file that is then moved into place, so
+    // the store never holds a partial chunk. Returns the stored size.
+    private long writeChunk(ByteBuffer chunk, Path chunkFile) throws IOException, GeneralSecurityException {
+        Files.createDirectories(chunkFile.getParent());
+        Path temporary = Files.createTempFile(chunkFile.getParent(), chunkFile.getFileName().toString(), ".tmp");
+        try {
+            if (secretKey != null) {
+                PipelineUtils.compressAndEncrypt(chunk, Files.newOutputStream(temporary), secretKey);
+            } else {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    CODEC.compress(chunk, out);
+                }
+            }
+            long stored = Files.size(temporary);
+            Files.move(temporary, chunkFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return stored;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // Restores every archived file under target and checks its content hash. Returns the file count.
+    public int extract(Path target, ExecutorService pool) throws IOException {
+        Path root = target.toAbsolutePath().normalize();
+        Collection<Entry> entries = readManifest().values();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Entry entry : entries) {
+            Path output = root.resolve(entry.name).normalize();
+            if (!output.startsWith(root) || output.equals(root)) {
+                throw new IOException("Archived name leaves the target directory: " + entry.name);
+            }
+            tasks.add(() -> {
+                restore(entry, output);
+                return null;
+            });
+        }
+        IoUtils.invokeAll(pool, tasks);
+        return entries.size();
+    }
+
+    private void restore(Entry entry, Path output) throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.ARCHIVE_EXTRACT)) {
+            Files.createDirectories(output.getParent());
+            Hasher hasher = new Hasher(secretKey);
+            try (OutputStream out = new HashingOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(output), CODEC.getBufferSize()), hasher)) {
+                for (Chunk chunk : entry.chunks) {
+                    Path chunkFile = chunkFile(hex(chunk.hash));
+                    timer.addBytesIn(Files.size(chunkFile));
+                    try (InputStream in = Files.newInputStream(chunkFile)) {
+                        if (secretKey != null) {
+                            PipelineUtils.decryptAndDecompress(in, out, secretKey);
+                        } else {
+                            CODEC.decompress(in, out);
+                        }
+                    }
+                }
+            }
+            if (!MessageDigest.isEqual(hasher.finish(), entry.hash)) {
+                throw new IOException("Restored " + entry.name + " does not match its archived content");
+            }
+            Files.setLastModifiedTime(output, FileTime.fromMillis(entry.lastModified));
+            timer.phase("restore");
+            timer.addBytesOut(entry.size);
+            timer.complete();
+        }
+    }
+
+    private Path chunkFile(String name) {
+        return directory.resolve(CHUNKS).resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private Map<String, Entry> readManifest() throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        Path manifest = directory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a ZipGuard archive manifest: " + manifest);
+            }
+            byte[] check = new byte[HASH_LENGTH];
+            in.readFully(check);
+            if (!MessageDigest.isEqual(check, keyCheck)) {
+                boolean encrypted = !MessageDigest.isEqual(check, new byte[HASH_LENGTH]);
+                throw new IOException("Archive " + directory + (!encrypted ? " is not encrypted, so takes no key"
+                        : secretKey == null ? " is encrypted and needs its key" : " was written with a different key"));
+            }
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] hash = new byte[HASH_LENGTH];
+                in.readFully(hash);
+                int chunkCount = in.readInt();
+                if (chunkCount < 0 || chunkCount > size / MIN_CHUNK + 1) {
+                    throw new IOException("Corrupt archive manifest: " + manifest);
+                }
+                List<Chunk> chunks = new ArrayList<>(chunkCount);
+                for (int j = 0; j < chunkCount; j++) {
+                    byte[] chunkHash = new byte[HASH_LENGTH];
+                    in.readFully(chunkHash);
+                    chunks.add(new Chunk(chunkHash, in.readInt()));
+                }
+                entries.put(name, new Entry(name, size, lastModified, hash, chunks));
+            }
+        } catch (EOFException e) {
+            throw new IOException("Archive manifest is truncated: " + manifest, e);
+        }
+        return entries;
+    }
+
+    // Writes the new manifest beside the old one and swaps it in
+    private void writeManifest(List<Entry> entries) throws IOException {
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, MANIFEST, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.write(keyCheck);
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.write(entry.hash);
+                    out.writeInt(entry.chunks.size());
+                    for (Chunk chunk : entry.chunks) {
+                        out.write(chunk.hash);
+                        out.writeInt(chunk.length);
+                    }
+                }
+            }
+            Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
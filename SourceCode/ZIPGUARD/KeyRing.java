@@ -0,0 +1,98 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Cache of parsed RSA keys loaded from PEM files. A key file is read and run through KeyFactory
+ * once, then served from memory until the file changes on disk or the entry is evicted. The least
+ * recently used entries are evicted beyond the configured capacity. Safe for concurrent use.
+ */
+public final class KeyRing {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final KeyRing DEFAULT = new KeyRing(DEFAULT_CAPACITY);
+
+    private static final class Entry {
+        final Key key;
+        final FileTime lastModified;
+
+        Entry(Key key, FileTime lastModified) {
+            this.key = key;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Map<Path, Entry> entries;
+
+    public KeyRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Shared key ring used by the RsaUtils file methods
+    public static KeyRing getDefault() {
+        return DEFAULT;
+    }
+
+    public PublicKey publicKey(Path pemFile) throws IOException, GeneralSecurityException {
+        Key key = load(pemFile, true);
+        if (!(key instanceof PublicKey)) {
+            throw new InvalidKeyException("Not a public key: " + pemFile);
+        }
+        return (PublicKey) key;
+    }
+
+    public PrivateKey privateKey(Path pemFile) throws IOException, GeneralSecurityException {
+        Key key = load(pemFile, false);
+        if (!(key instanceof PrivateKey)) {
+            throw new InvalidKeyException("Not a private key: " + pemFile);
+        }
+        return (PrivateKey) key;
+    }
+
+    public synchronized void invalidate(Path pemFile) {
+        entries.remove(pemFile.toAbsolutePath().normalize());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Only the map lookup and insert hold the lock, so a cold PEM load never stalls lookups of other
+    // keys. Threads that miss on the same file at once each parse it; the last one's entry stays.
+    private Key load(Path pemFile, boolean publicKey) throws IOException, GeneralSecurityException {
+        Path path = pemFile.toAbsolutePath().normalize();
+        FileTime lastModified = Files.getLastModifiedTime(path);
+
+        Entry entry = cached(path);
+        if (entry != null && entry.lastModified.equals(lastModified)) {
+            return entry.key;
+        }
+
+        Key key = publicKey ? RsaUtils.readPublicKeyFromFile(path) : RsaUtils.readPrivateKeyFromFile(path);
+        synchronized (this) {
+            entries.put(path, new Entry(key, lastModified));
+        }
+        return key;
+    }
+
+    private synchronized Entry cached(Path path) {
+        return entries.get(path);
+    }
+}
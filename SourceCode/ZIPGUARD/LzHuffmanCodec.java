@@ -0,0 +1,484 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * LZ77 + Huffman codec in the manner of DEFLATE. A hash-chain match finder replaces repeated
+ * strings with (length, distance) back-references into a sliding window, and the resulting
+ * literal/length and distance symbols are Huffman-coded with tables built per block. Plain
+ * HuffmanCodec only exploits the byte histogram; this is what gets text, logs and JSON down to
+ * the ratios of general-purpose compressors.
+ *
+ * The level (1-9) bounds how many chain candidates are tried per position and from level 4 on
+ * enables lazy matching, which defers a match by one byte when the next position has a longer one.
+ * The window is 2^windowBits bytes (10-20 bits, 32 KB by default like DEFLATE).
+ *
+ * Layout: magic "ZGL1", window bits (8 bits), 64-bit original length, then blocks of up to 1 MB of
+ * input. Each block starts with its BlockModes mode (8 bits): a coded block holds its literal/length
+ * table, its distance table, the coded symbols and an end-of-block symbol; a block that coding would
+ * not shrink is stored as a 32-bit length and the raw bytes. Lengths and distances are coded as a
+ * bucket symbol plus extra bits, and the longest length has a symbol of its own. Back-references may
+ * reach into earlier blocks, so blocks decode strictly in order.
+ */
+public final class LzHuffmanCodec {
+
+    public static final int DEFAULT_LEVEL = 6;
+    public static final int DEFAULT_WINDOW_BITS = 15;
+    public static final int MIN_WINDOW_BITS = 10;
+    public static final int MAX_WINDOW_BITS = 20;
+
+    static final int MAGIC = 0x5A474C31; // "ZGL1"
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 258;
+
+    // Literal/length alphabet: 256 literals, end of block, one symbol per length bucket, then one for
+    // MAX_MATCH, which runs of a single byte repeat over and over
+    private static final int END_OF_BLOCK = 256;
+    private static final int LENGTH_SYMBOLS = bucket(MAX_MATCH - 1 - MIN_MATCH) + 2;
+    private static final int LITLEN_SYMBOLS = END_OF_BLOCK + 1 + LENGTH_SYMBOLS;
+    private static final int DISTANCE_SYMBOLS = bucket((1 << MAX_WINDOW_BITS) - 1) + 1;
+
+    // Tokens pack a match as (length << 21) | distance; literals are the bare byte value
+    private static final int DISTANCE_BITS = 21;
+
+    private static final int HASH_BITS = 16;
+
+    // A three-byte match farther back than this costs more bits than the three literals it replaces
+    private static final int TOO_FAR = 4096;
+
+    // Per level 1-9: chain candidates tried per position, and the length that ends the search early
+    private static final int[] MAX_CHAIN = {4, 8, 16, 32, 64, 128, 256, 1024, 4096};
+    private static final int[] NICE_LENGTH = {8, 16, 32, 32, 64, 128, 128, 258, 258};
+    private static final int LAZY_LEVEL = 4;
+
+    private final int level;
+    private final int windowBits;
+    private final int bufferSize;
+
+    public LzHuffmanCodec() {
+        this(DEFAULT_LEVEL, DEFAULT_WINDOW_BITS);
+    }
+
+    public LzHuffmanCodec(int level) {
+        this(level, DEFAULT_WINDOW_BITS);
+    }
+
+    public LzHuffmanCodec(int level, int windowBits) {
+        if (level < 1 || level > MAX_CHAIN.length) {
+            throw new IllegalArgumentException("Level must be between 1 and " + MAX_CHAIN.length + ": " + level);
+        }
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("Window bits must be between " + MIN_WINDOW_BITS + " and "
+                    + MAX_WINDOW_BITS + ": " + windowBits);
+        }
+        this.level = level;
+        this.windowBits = windowBits;
+        this.bufferSize = HuffmanCodec.DEFAULT_BUFFER_SIZE;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getWindowBits() {
+        return windowBits;
+    }
+
+    // A file written here ends with a Checksums trailer, which the stream method leaves out
+    public void compress(Path input, Path output) throws IOException {
+        MappedFile mapped = map(input);
+        try (Checksums.ChecksumOutputStream out = new Checksums.ChecksumOutputStream(Files.newOutputStream(output))) {
+            compress(mapped, out);
+            out.finish(mapped.size());
+        }
+    }
+
+    // Compresses the memory-mapped input block by block. The output stream is flushed but left open.
+    public void compress(Path input, OutputStream output) throws IOException {
+        compress(map(input), output);
+    }
+
+    private void compress(MappedFile mapped, OutputStream output) throws IOException {
+        try (OperationTimer timer = Metrics.start(Metrics.LZ_COMPRESS)) {
+            compress(mapped, output, timer);
+            timer.complete();
+        }
+    }
+
+    private static MappedFile map(Path input) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            return new MappedFile(channel);
+        }
+    }
+
+    private void compress(MappedFile mapped, OutputStream output, OperationTimer timer) throws IOException {
+        long length = mapped.size();
+        timer.addBytesIn(length);
+
+        BitOutputStream bitOut = new BitOutputStream(timer.timeWrites(output), (int) Math.min(bufferSize, length + 1024));
+        bitOut.writeBits(MAGIC, 32);
+        bitOut.writeBits(windowBits, 8);
+        bitOut.writeBits(length, 64);
+
+        int window = 1 << windowBits;
+        Matcher matcher = new Matcher(window, (int) Math.min(window + BLOCK_SIZE, window + length), level);
+        for (long position = 0; position < length; position += BLOCK_SIZE) {
+            // Each block is matched together with the window of input that precedes it
+            int history = (int) Math.min(window, position);
+            int blockLength = (int) Math.min(BLOCK_SIZE, length - position);
+            mapped.slice(position - history, history + blockLength).get(matcher.data, 0, history + blockLength);
+            matcher.tokenize(history, history + blockLength);
+            timer.phase("match");
+
+            writeBlock(matcher, bitOut, history, blockLength);
+            timer.phase("encode");
+        }
+        bitOut.finish();
+        timer.phase("encode");
+    }
+
+    // Writes the block's tokens, or the block itself when they would not code smaller than it
+    private static void writeBlock(Matcher matcher, BitOutputStream out, int start, int length) throws IOException {
+        long[] litlenFrequencies = new long[LITLEN_SYMBOLS];
+        long[] distanceFrequencies = new long[DISTANCE_SYMBOLS];
+        int[] tokens = matcher.tokens;
+        for (int i = 0; i < matcher.tokenCount; i++) {
+            int token = tokens[i];
+            if (token >>> DISTANCE_BITS == 0) {
+                litlenFrequencies[token]++;
+            } else {
+                litlenFrequencies[END_OF_BLOCK + 1 + lengthCode(token >>> DISTANCE_BITS)]++;
+                distanceFrequencies[bucket((token & ((1 << DISTANCE_BITS) - 1)) - 1)]++;
+            }
+        }
+        litlenFrequencies[END_OF_BLOCK]++;
+
+        HuffmanTable litlen = HuffmanTable.fromFrequencies(litlenFrequencies);
+        HuffmanTable distances = HuffmanTable.fromFrequencies(distanceFrequencies);
+        if (codedBits(litlen, litlenFrequencies, distances, distanceFrequencies) >= 8L * length + 32) {
+            out.writeBits(BlockModes.STORED, 8);
+            out.writeBits(length, 32);
+            byte[] data = matcher.data;
+            for (int i = start, end = start + length; i < end; i++) {
+                out.writeBits(data[i], 8);
+            }
+            return;
+        }
+
+        out.writeBits(BlockModes.HUFFMAN, 8);
+        litlen.writeTo(out);
+        distances.writeTo(out);
+        for (int i = 0; i < matcher.tokenCount; i++) {
+            int token = tokens[i];
+            if (token >>> DISTANCE_BITS == 0) {
+                litlen.encode(out, token);
+            } else {
+                int matchLength = token >>> DISTANCE_BITS;
+                int lengthCode = lengthCode(matchLength);
+                litlen.encode(out, END_OF_BLOCK + 1 + lengthCode);
+                out.writeBits(matchLength - lengthBase(lengthCode), lengthExtraBits(lengthCode));
+
+                int distanceValue = (token & ((1 << DISTANCE_BITS) - 1)) - 1;
+                int distanceCode = bucket(distanceValue);
+                distances.encode(out, distanceCode);
+                out.writeBits(distanceValue - bucketBase(distanceCode), extraBits(distanceCode));
+            }
+        }
+        litlen.encode(out, END_OF_BLOCK);
+    }
+
+    // Size of a coded block in bits: both tables, every symbol and every extra bit
+    private static long codedBits(HuffmanTable litlen, long[] litlenFrequencies,
+                                  HuffmanTable distances, long[] distanceFrequencies) {
+        long bits = 32 + 25L * LITLEN_SYMBOLS + 14L * DISTANCE_SYMBOLS; // Upper bound for the two tables
+        for (int symbol = 0; symbol < LITLEN_SYMBOLS; symbol++) {
+            int extra = symbol > END_OF_BLOCK ? lengthExtraBits(symbol - END_OF_BLOCK - 1) : 0;
+            bits += litlenFrequencies[symbol] * (litlen.codeLength(symbol) + extra);
+        }
+        for (int symbol = 0; symbol < DISTANCE_SYMBOLS; symbol++) {
+            bits += distanceFrequencies[symbol] * (distances.codeLength(symbol) + extraBits(symbol));
+        }
+        return bits;
+    }
+
+    // Checks the file against its Checksums trailer, if it has one, before decoding
+    public void decompress(Path input, Path output) throws IOException {
+        MappedFile mapped;
+        Checksums.Trailer trailer;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            mapped = new MappedFile(channel);
+            trailer = Checksums.Trailer.read(channel);
+        }
+        if (trailer != null) {
+            trailer.verifyAll(mapped);
+        }
+        try (OutputStream out = Files.newOutputStream(output)) {
+            decompress(mapped.newInputStream(0), out);
+        }
+        if (trailer != null) {
+            trailer.checkLength(Files.size(output));
+        }
+    }
+
+    // Neither stream is closed. Decompression takes its window size from the file, not from this codec.
+    public void decompress(InputStream input, OutputStream output) throws IOException {
+        try (OperationTimer timer = Metrics.start(Metrics.LZ_DECOMPRESS)) {
+            decompress(input, output, timer);
+            timer.complete();
+        }
+    }
+
+    private void decompress(InputStream input, OutputStream output, OperationTimer timer) throws IOException {
+        BitInputStream bitIn = new BitInputStream(timer.timeReads(input), bufferSize);
+        if (bitIn.readBits(32) != MAGIC) {
+            throw new IOException("Not a ZipGuard LZ compressed file");
+        }
+        int fileWindowBits = bitIn.readBits(8);
+        long length = ((long) bitIn.readBits(32) << 32) | (bitIn.readBits(32) & 0xFFFFFFFFL);
+        if (fileWindowBits < MIN_WINDOW_BITS || fileWindowBits > MAX_WINDOW_BITS || length < 0) {
+            throw new IOException("Corrupt compressed file header");
+        }
+
+        // The last window of output stays in the buffer for back-references; the rest is written out
+        // whenever the buffer runs short of room
+        OutputStream out = timer.timeWrites(output);
+        int window = 1 << fileWindowBits;
+        byte[] buffer = new byte[(int) Math.min(window + bufferSize, length + MAX_MATCH)];
+        int position = 0;
+        int flushed = 0;
+        long produced = 0;
+        while (produced < length) {
+            int mode = bitIn.readBits(8);
+            if (mode == BlockModes.STORED) {
+                int storedLength = bitIn.readBits(32);
+                if (storedLength <= 0 || storedLength > length - produced) {
+                    throw new IOException("Corrupt compressed data: stored block of " + storedLength + " bytes");
+                }
+                for (int i = 0; i < storedLength; i++) {
+                    if (position == buffer.length) {
+                        position = flushed = slide(buffer, position, flushed, window, out);
+                    }
+                    buffer[position++] = (byte) bitIn.readBits(8);
+                }
+                produced += storedLength;
+                continue;
+            }
+            if (mode != BlockModes.HUFFMAN) {
+                throw new IOException("Corrupt compressed data: unknown block mode " + mode);
+            }
+            HuffmanTable litlen = HuffmanTable.readFrom(bitIn, LITLEN_SYMBOLS);
+            HuffmanTable distances = HuffmanTable.readFrom(bitIn, DISTANCE_SYMBOLS);
+            long blockStart = produced;
+            for (;;) {
+                if (position > buffer.length - MAX_MATCH) {
+                    position = flushed = slide(buffer, position, flushed, window, out);
+                }
+                int symbol = litlen.decode(bitIn);
+                if (symbol < END_OF_BLOCK) {
+                    buffer[position++] = (byte) symbol;
+                    produced++;
+                } else if (symbol == END_OF_BLOCK) {
+                    break;
+                } else {
+                    int lengthCode = symbol - END_OF_BLOCK - 1;
+                    int matchLength = lengthBase(lengthCode) + bitIn.readBits(lengthExtraBits(lengthCode));
+                    int distanceCode = distances.decode(bitIn);
+                    int distance = 1 + bucketBase(distanceCode) + bitIn.readBits(extraBits(distanceCode));
+                    if (distance > position || matchLength > MAX_MATCH) {
+                        throw new IOException("Corrupt compressed data: back-reference out of range");
+                    }
+                    copyMatch(buffer, position, distance, matchLength);
+                    position += matchLength;
+                    produced += matchLength;
+                }
+                if (produced > length) {
+                    throw new IOException("Compressed data overruns the original length");
+                }
+            }
+            if (produced == blockStart && produced < length) {
+                throw new IOException("Corrupt compressed data: empty block");
+            }
+        }
+        out.write(buffer, flushed, position - flushed);
+        out.flush();
+        timer.phase("decode");
+        timer.addBytesIn(timer.bytesRead());
+    }
+
+    // Writes out everything not yet written and moves the last window of output to the front of the
+    // buffer; returns the new position, which is the length of that window
+    private static int slide(byte[] buffer, int position, int flushed, int window, OutputStream out) throws IOException {
+        out.write(buffer, flushed, position - flushed);
+        int keep = Math.min(window, position);
+        System.arraycopy(buffer, position - keep, buffer, 0, keep);
+        return keep;
+    }
+
+    // Copies a back-reference; overlapping ones (distance < length) repeat the last distance bytes
+    private static void copyMatch(byte[] buffer, int position, int distance, int length) {
+        int from = position - distance;
+        if (distance >= length) {
+            System.arraycopy(buffer, from, buffer, position, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer[position + i] = buffer[from + i];
+            }
+        }
+    }
+
+    // Length and distance buckets: values 0-3 have their own symbol, after that every power of two
+    // is split into two symbols, each followed by log2(value) - 1 extra bits
+    static int bucket(int value) {
+        if (value < 4) {
+            return value;
+        }
+        int log = 31 - Integer.numberOfLeadingZeros(value);
+        return 2 * log + ((value >>> (log - 1)) & 1);
+    }
+
+    private static int lengthCode(int length) {
+        return length == MAX_MATCH ? LENGTH_SYMBOLS - 1 : bucket(length - MIN_MATCH);
+    }
+
+    private static int lengthBase(int code) {
+        return code == LENGTH_SYMBOLS - 1 ? MAX_MATCH : MIN_MATCH + bucketBase(code);
+    }
+
+    private static int lengthExtraBits(int code) {
+        return code == LENGTH_SYMBOLS - 1 ? 0 : extraBits(code);
+    }
+
+    private static int bucketBase(int code) {
+        return code < 4 ? code : (2 + (code & 1)) << ((code >>> 1) - 1);
+    }
+
+    private static int extraBits(int code) {
+        return code < 4 ? 0 : (code >>> 1) - 1;
+    }
+
+    // Hash-chain match finder over one block and the window before it. Positions are indexes into
+    // data; head holds the latest position for each hash of three bytes and prev links every
+    // position to the previous one with the same hash.
+    private static final class Matcher {
+        final byte[] data;
+        final int[] tokens;
+        int tokenCount;
+
+        private final int window;
+        private final int maxChain;
+        private final int niceLength;
+        private final boolean lazy;
+        private final int[] head = new int[1 << HASH_BITS];
+        private final int[] prev;
+        private int limit;
+        private int matchDistance;
+
+        Matcher(int window, int capacity, int level) {
+            this.window = window;
+            this.maxChain = MAX_CHAIN[level - 1];
+            this.niceLength = NICE_LENGTH[level - 1];
+            this.lazy = level >= LAZY_LEVEL;
+            this.data = new byte[capacity];
+            this.prev = new int[capacity];
+            this.tokens = new int[Math.min(capacity, BLOCK_SIZE)];
+        }
+
+        // Turns data[start, end) into tokens, with data[0, start) as already-seen history
+        void tokenize(int start, int end) {
+            limit = end;
+            tokenCount = 0;
+            Arrays.fill(head, -1);
+            for (int p = 0; p < start; p++) {
+                insert(p);
+            }
+
+            int p = start;
+            int length = -1; // Best match at p, or -1 if p has not been searched yet
+            int distance = 0;
+            while (p < end) {
+                if (length < 0) {
+                    length = search(p, MIN_MATCH - 1);
+                    distance = matchDistance;
+                }
+                if (length < MIN_MATCH || (length == MIN_MATCH && distance > TOO_FAR)) {
+                    tokens[tokenCount++] = data[p] & 0xFF;
+                    p++;
+                    length = -1;
+                    continue;
+                }
+                int next = p + 1;
+                if (lazy && length < niceLength && next < end) {
+                    // A longer match one byte on is worth a literal here
+                    int nextLength = search(next, length);
+                    if (nextLength > length) {
+                        tokens[tokenCount++] = data[p] & 0xFF;
+                        p = next;
+                        length = nextLength;
+                        distance = matchDistance;
+                        continue;
+                    }
+                    next++;
+                }
+                tokens[tokenCount++] = (length << DISTANCE_BITS) | distance;
+                for (int q = next; q < p + length; q++) {
+                    insert(q);
+                }
+                p += length;
+                length = -1;
+            }
+        }
+
+        // Inserts p into its chain and returns the longest match there that beats best, or 0.
+        // The match distance is left in matchDistance.
+        private int search(int p, int best) {
+            int maxLength = Math.min(MAX_MATCH, limit - p);
+            if (maxLength < MIN_MATCH) {
+                return 0;
+            }
+            int found = 0;
+            int candidate = head[hash(p)];
+            insert(p);
+            byte[] data = this.data;
+            for (int chain = maxChain; candidate >= 0 && p - candidate <= window && chain > 0; chain--) {
+                if (best >= maxLength) {
+                    break;
+                }
+                // Check the byte that would make this candidate better first: most candidates fail there
+                if (data[candidate + best] == data[p + best] && data[candidate] == data[p]) {
+                    int length = 1;
+                    while (length < maxLength && data[candidate + length] == data[p + length]) {
+                        length++;
+                    }
+                    if (length > best) {
+                        best = found = length;
+                        matchDistance = p - candidate;
+                        if (length >= niceLength) {
+                            break;
+                        }
+                    }
+                }
+                candidate = prev[candidate];
+            }
+            return found;
+        }
+
+        private void insert(int p) {
+            if (p + MIN_MATCH > limit) {
+                return;
+            }
+            int h = hash(p);
+            prev[p] = head[h];
+            head[h] = p;
+        }
+
+        private int hash(int p) {
+            int key = (data[p] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF);
+            return (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a whole file, so codecs and ciphers can work on the page cache in
+ * place instead of copying the file onto the heap. A single mapping is limited to 2GB, so the file
+ * is mapped as a series of 1GB windows that overlap by MAX_SLICE bytes; any slice of up to
+ * MAX_SLICE bytes therefore lies inside one window. Slices are independent views and can be used
+ * from any number of threads. The mappings are released when they are garbage collected.
+ * Files below MIN_MAP_SIZE are read into a heap buffer instead, because for them setting up and
+ * tearing down a mapping costs more than the copy it saves.
+ */
+final class MappedFile {
+
+    // Longest slice that can be requested: a maximum-size block or AES segment plus its framing
+    static final int MAX_SLICE = 64 * 1024 * 1024 + 1024;
+
+    static final int MIN_MAP_SIZE = 64 * 1024;
+
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final ByteBuffer[] windows;
+    private final long size;
+
+    MappedFile(FileChannel channel) throws IOException {
+        this.size = channel.size();
+        if (size < MIN_MAP_SIZE) {
+            ByteBuffer contents = ByteBuffer.allocate((int) size);
+            IoUtils.readFully(channel, contents, 0);
+            this.windows = new ByteBuffer[] {contents.flip()};
+            return;
+        }
+        int windowCount = (int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        this.windows = new ByteBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            long start = i * WINDOW_SIZE;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE + MAX_SLICE, size - start));
+        }
+    }
+
+    // Wraps bytes already in memory, so codecs can run over them exactly as over a file
+    MappedFile(ByteBuffer contents) {
+        this.size = contents.remaining();
+        this.windows = new ByteBuffer[] {contents.slice()};
+    }
+
+    long size() {
+        return size;
+    }
+
+    // View of length bytes at position. Lengths usually come from file headers, so a bad one is an IOException.
+    ByteBuffer slice(long position, int length) throws IOException {
+        if (length < 0 || length > MAX_SLICE) {
+            throw new IOException("Cannot map a region of " + length + " bytes as one slice");
+        }
+        if (position < 0 || position + length > size) {
+            throw new EOFException("Unexpected end of file at offset " + Math.max(position, size));
+        }
+        int window = (int) (position / WINDOW_SIZE);
+        return windows[window].slice((int) (position - window * WINDOW_SIZE), length);
+    }
+
+    // Sequential stream over the mapping from position on; bulk reads copy straight from the page cache
+    InputStream newInputStream(long position) {
+        return new InputStream() {
+            private long next = position;
+            private ByteBuffer current = ByteBuffer.allocate(0);
+
+            private boolean advance() throws IOException {
+                if (!current.hasRemaining() && next < size) {
+                    int length = (int) Math.min(MAX_SLICE, size - next);
+                    current = slice(next, length);
+                    next += length;
+                }
+                return current.hasRemaining();
+            }
+
+            @Override
+            public int read() throws IOException {
+                return advance() ? current.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+                int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, current.remaining() + (size - next));
+            }
+        };
+    }
+}
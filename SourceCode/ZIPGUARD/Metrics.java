@@ -0,0 +1,129 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.*;
+
+/**
+ * Process-wide registry of per-operation statistics. Every operation is exposed over JMX as
+ * ZIPGUARD:type=Operation,name=<operation> when it is first used, and the whole registry can be
+ * dumped as a JSON summary with toJson() or writeJson(Path).
+ */
+public final class Metrics {
+
+    public static final String HUFFMAN_COMPRESS = "huffman.compress";
+    public static final String HUFFMAN_DECOMPRESS = "huffman.decompress";
+    public static final String BLOCK_COMPRESS = "block.compress";
+    public static final String BLOCK_DECOMPRESS = "block.decompress";
+    public static final String BLOCK_READ_RANGE = "block.read-range";
+    public static final String LZ_COMPRESS = "lz.compress";
+    public static final String LZ_DECOMPRESS = "lz.decompress";
+    public static final String AES_ENCRYPT = "aes.encrypt";
+    public static final String AES_DECRYPT = "aes.decrypt";
+    public static final String RSA_ENCRYPT = "rsa.encrypt";
+    public static final String RSA_DECRYPT = "rsa.decrypt";
+    public static final String PIPELINE_COMPRESS = "pipeline.compress";
+    public static final String PIPELINE_RESTORE = "pipeline.restore";
+    public static final String ARCHIVE_UPDATE = "archive.update";
+    public static final String ARCHIVE_EXTRACT = "archive.extract";
+    public static final String ASYNC_COMPRESS = "async.compress";
+    public static final String ASYNC_DECOMPRESS = "async.decompress";
+    public static final String ASYNC_ENCRYPT = "async.encrypt";
+    public static final String ASYNC_DECRYPT = "async.decrypt";
+    public static final String ASYNC_COMPRESS_ENCRYPT = "async.compress-encrypt";
+    public static final String ASYNC_DECRYPT_DECOMPRESS = "async.decrypt-decompress";
+    public static final String VERIFY = "integrity.verify";
+
+    private static final Map<String, OperationStats> OPERATIONS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static OperationStats get(String operation) {
+        return OPERATIONS.computeIfAbsent(operation, Metrics::register);
+    }
+
+    // Snapshot of every operation used so far, sorted by name
+    public static List<OperationStats> all() {
+        List<OperationStats> stats = new ArrayList<>(OPERATIONS.values());
+        stats.sort(Comparator.comparing(OperationStats::getName));
+        return stats;
+    }
+
+    public static void reset() {
+        for (OperationStats stats : OPERATIONS.values()) {
+            stats.reset();
+        }
+    }
+
+    static OperationTimer start(String operation) {
+        return new OperationTimer(get(operation));
+    }
+
+    private static OperationStats register(String operation) {
+        OperationStats stats = new OperationStats(operation);
+        try {
+            ObjectName name = new ObjectName("ZIPGUARD:type=Operation,name=" + ObjectName.quote(operation));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(stats, name);
+            }
+        } catch (JMException | SecurityException e) {
+            // Metrics are still collected and reported as JSON without JMX
+        }
+        return stats;
+    }
+
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\"operations\":[");
+        List<OperationStats> operations = all();
+        for (int i = 0; i < operations.size(); i++) {
+            OperationStats stats = operations.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(stats.getName()).append('"')
+                    .append(",\"count\":").append(stats.getCount())
+                    .append(",\"errors\":").append(stats.getErrors())
+                    .append(",\"bytesIn\":").append(stats.getBytesIn())
+                    .append(",\"bytesOut\":").append(stats.getBytesOut())
+                    .append(",\"compressionRatio\":").append(number(stats.getCompressionRatio()))
+                    .append(",\"latencyMillis\":{\"mean\":").append(number(stats.getMeanLatencyMillis()))
+                    .append(",\"p50\":").append(number(stats.getLatencyPercentileMillis(50)))
+                    .append(",\"p90\":").append(number(stats.getLatencyPercentileMillis(90)))
+                    .append(",\"p99\":").append(number(stats.getLatencyPercentileMillis(99)))
+                    .append(",\"max\":").append(number(stats.getLatencyPercentileMillis(100)))
+                    .append("},\"phaseMillis\":{");
+            appendMap(json, stats.getPhaseMillis());
+            json.append("},\"latencyHistogram\":{");
+            appendMap(json, stats.getLatencyHistogram());
+            json.append("}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    public static void writeJson(Path file) throws IOException {
+        Files.write(file, (toJson() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendMap(StringBuilder json, Map<String, ? extends Number> values) {
+        boolean first = true;
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            Number value = entry.getValue();
+            json.append('"').append(entry.getKey()).append("\":")
+                    .append(value instanceof Double ? number(value.doubleValue()) : value.toString());
+        }
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
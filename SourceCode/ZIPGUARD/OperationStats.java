@@ -0,0 +1,137 @@
+package ZIPGUARD;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters for one ZipGuard operation: calls, failures, bytes in and out, wall time per
+ * phase and a latency histogram with power-of-two microsecond buckets.
+ */
+public final class OperationStats implements OperationStatsMXBean {
+
+    private static final int BUCKETS = 40; // Bucket i holds latencies below 2^i microseconds
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKETS);
+    private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    void record(boolean success, long nanos, long in, long out, Map<String, Long> phases) {
+        if (success) {
+            count.increment();
+            bytesIn.add(in);
+            bytesOut.add(out);
+        } else {
+            errors.increment();
+        }
+        latencyNanos.add(nanos);
+        long micros = Math.max(nanos / 1000, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        latencyBuckets.incrementAndGet(bucket);
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            phaseNanos.computeIfAbsent(phase.getKey(), key -> new LongAdder()).add(phase.getValue());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long in = bytesIn.sum();
+        return in == 0 ? 0 : (double) bytesOut.sum() / in;
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long calls = count.sum() + errors.sum();
+        return calls == 0 ? 0 : latencyNanos.sum() / 1e6 / calls;
+    }
+
+    // Upper bound of the bucket that contains the given percentile (0-100)
+    @Override
+    public double getLatencyPercentileMillis(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += latencyBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= Math.max(target, 1)) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMillis() {
+        Map<String, Double> phases = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> phase : phaseNanos.entrySet()) {
+            phases.put(phase.getKey(), phase.getValue().sum() / 1e6);
+        }
+        return phases;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            long calls = latencyBuckets.get(i);
+            if (calls != 0) {
+                histogram.put("<=" + (1L << i) + "us", calls);
+            }
+        }
+        return histogram;
+    }
+
+    @Override
+    public void reset() {
+        count.reset();
+        errors.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        latencyNanos.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            latencyBuckets.set(i, 0);
+        }
+        phaseNanos.clear();
+    }
+}
@@ -0,0 +1,32 @@
+package ZIPGUARD;
+
+import java.util.Map;
+
+// JMX view of one operation's counters, registered as ZIPGUARD:type=Operation,name=<operation>
+public interface OperationStatsMXBean {
+
+    String getName();
+
+    long getCount();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    // Output bytes per input byte over all successful calls; 0 before the first call
+    double getCompressionRatio();
+
+    double getMeanLatencyMillis();
+
+    double getLatencyPercentileMillis(double percentile);
+
+    // Total wall time per phase (read, frequency-count, encode, cipher, ...) in milliseconds
+    Map<String, Double> getPhaseMillis();
+
+    // Call count per latency bucket, keyed by the bucket's upper bound, e.g. "<=1024us"
+    Map<String, Long> getLatencyHistogram();
+
+    void reset();
+}
@@ -0,0 +1,174 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Measures one call of an operation on the calling thread. Wall time is split into named phases:
+ * phase(name) charges the time since the previous checkpoint to name, except for time already
+ * charged to "read" or "write" by the wrapped streams, so the phases add up to the total.
+ * Closing the timer records the call; a call that never reached complete() counts as an error.
+ */
+final class OperationTimer implements AutoCloseable {
+    private final OperationStats stats;
+    private final long start;
+    private final Map<String, Long> phases = new HashMap<>();
+    private long checkpoint;
+    private long ioSinceCheckpoint;
+    private long bytesIn;
+    private long bytesOut;
+    private long bytesRead;
+    private boolean completed;
+
+    OperationTimer(OperationStats stats) {
+        this.stats = stats;
+        this.start = System.nanoTime();
+        this.checkpoint = start;
+    }
+
+    void phase(String name) {
+        long now = System.nanoTime();
+        add(name, now - checkpoint - ioSinceCheckpoint);
+        checkpoint = now;
+        ioSinceCheckpoint = 0;
+    }
+
+    void add(String name, long nanos) {
+        phases.merge(name, nanos, Long::sum);
+    }
+
+    private void addIo(String name, long nanos) {
+        add(name, nanos);
+        ioSinceCheckpoint += nanos;
+    }
+
+    void addBytesIn(long bytes) {
+        bytesIn += bytes;
+    }
+
+    void addBytesOut(long bytes) {
+        bytesOut += bytes;
+    }
+
+    // Bytes returned so far by the streams wrapped with timeReads
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    void complete() {
+        completed = true;
+    }
+
+    @Override
+    public void close() {
+        stats.record(completed, System.nanoTime() - start, bytesIn, bytesOut, phases);
+    }
+
+    // Charges time spent in read calls to the "read" phase and counts the bytes in bytesRead()
+    InputStream timeReads(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                long begin = System.nanoTime();
+                int b = super.read();
+                addIo("read", System.nanoTime() - begin);
+                if (b != -1) {
+                    bytesRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long begin = System.nanoTime();
+                int n = super.read(b, off, len);
+                addIo("read", System.nanoTime() - begin);
+                if (n > 0) {
+                    bytesRead += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    // Charges time spent in write calls to the "write" phase and counts the bytes as bytesOut.
+    // Meant for bulk writes, for example the buffer drains of a BitOutputStream.
+    OutputStream timeWrites(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                long begin = System.nanoTime();
+                out.write(b);
+                addIo("write", System.nanoTime() - begin);
+                bytesOut++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                long begin = System.nanoTime();
+                out.write(b, off, len);
+                addIo("write", System.nanoTime() - begin);
+                bytesOut += len;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                long begin = System.nanoTime();
+                out.flush();
+                addIo("write", System.nanoTime() - begin);
+            }
+        };
+    }
+
+    // Channel counterpart of timeReads(InputStream)
+    ReadableByteChannel timeReads(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                long begin = System.nanoTime();
+                int n = channel.read(dst);
+                addIo("read", System.nanoTime() - begin);
+                if (n > 0) {
+                    bytesRead += n;
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    // Channel counterpart of timeWrites(OutputStream)
+    WritableByteChannel timeWrites(WritableByteChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                long begin = System.nanoTime();
+                int n = channel.write(src);
+                addIo("write", System.nanoTime() - begin);
+                bytesOut += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
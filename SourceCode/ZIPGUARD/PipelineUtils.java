@@ -0,0 +1,169 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import javax.crypto.SecretKey;
+
+/**
+ * Compress-then-encrypt in a single streaming pass. Huffman output is encrypted in memory as it is
+ * produced, so no intermediate file is written, and decryption feeds the decoder the same way.
+ *
+ * .zg container: "ZGC", format version, codec id, cipher id, then an AesUtils segmented AES-GCM
+ * stream of the HuffmanCodec output, or of a BlockStream for containers written by AsyncPipeline.
+ * The container header is authenticated with every segment.
+ */
+public class PipelineUtils {
+
+    public static final String EXTENSION = ".zg";
+
+    static final byte[] MAGIC = {'Z', 'G', 'C'};
+    static final int VERSION = 1;
+    static final int CODEC_HUFFMAN = 1;
+    static final int CODEC_BLOCK_STREAM = 2;
+    static final int CIPHER_AES_GCM = 1;
+    static final int HEADER_LENGTH = 6;
+
+    private static final HuffmanCodec CODEC = new HuffmanCodec();
+
+    // The container is written to a temporary file that is moved into place once it is complete, so
+    // a failure never leaves a partial container at outputFile
+    public static void compressAndEncrypt(Path inputFile, Path outputFile, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        // Phases of the compression itself are reported under huffman.compress
+        try (OperationTimer timer = Metrics.start(Metrics.PIPELINE_COMPRESS)) {
+            Path directory = outputFile.toAbsolutePath().getParent();
+            Path temporary = Files.createTempFile(directory, outputFile.getFileName().toString(), ".tmp");
+            try {
+                AesGcmOutputStream encrypted = openContainer(Files.newOutputStream(temporary), secretKey);
+                try {
+                    CODEC.compress(inputFile, encrypted);
+                } catch (Throwable e) {
+                    encrypted.abort(e);
+                    throw e;
+                }
+                encrypted.close();
+                Files.move(temporary, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            timer.phase("compress-encrypt");
+            timer.addBytesIn(Files.size(inputFile));
+            timer.addBytesOut(Files.size(outputFile));
+            timer.complete();
+        }
+    }
+
+    // The same container for bytes already in memory; file is closed when the container is complete.
+    // If compression fails the final segment is never sealed, so the partial output cannot restore.
+    static void compressAndEncrypt(ByteBuffer data, OutputStream file, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        AesGcmOutputStream encrypted = openContainer(file, secretKey);
+        try {
+            CODEC.compress(data, encrypted);
+        } catch (Throwable e) {
+            encrypted.abort(e);
+            throw e;
+        }
+        encrypted.close();
+    }
+
+    // Writes the container header to file and returns the stream that encrypts what follows it
+    private static AesGcmOutputStream openContainer(OutputStream file, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        byte[] header = {MAGIC[0], MAGIC[1], MAGIC[2], VERSION, CODEC_HUFFMAN, CIPHER_AES_GCM};
+        OutputStream buffered = new BufferedOutputStream(file, CODEC.getBufferSize());
+        try {
+            buffered.write(header);
+            // The cipher stream collects whole segments itself, so it needs no buffer in front
+            return new AesGcmOutputStream(buffered, secretKey, AesUtils.DEFAULT_SEGMENT_SIZE, header);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public static void decryptAndDecompress(Path inputFile, Path outputFile, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.PIPELINE_RESTORE);
+             InputStream file = Files.newInputStream(inputFile);
+             OutputStream out = Files.newOutputStream(outputFile)) {
+            decryptAndDecompress(file, out, secretKey);
+            timer.phase("decrypt-decompress");
+            timer.addBytesIn(Files.size(inputFile));
+            timer.addBytesOut(Files.size(outputFile));
+            timer.complete();
+        }
+    }
+
+    // Restores a container read from file to out; neither stream is closed
+    static void decryptAndDecompress(InputStream file, OutputStream out, SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        InputStream buffered = new BufferedInputStream(file, CODEC.getBufferSize());
+        byte[] header = readHeader(buffered);
+        InputStream decrypted = new AesGcmInputStream(buffered, secretKey, header);
+        if (header[4] == CODEC_BLOCK_STREAM) {
+            BlockStream.decode(decrypted, out);
+        } else {
+            CODEC.decompress(decrypted, out);
+        }
+
+        // Reaching the end also authenticates the final segment
+        if (decrypted.read() != -1) {
+            throw new IOException("Unexpected data after the compressed stream");
+        }
+    }
+
+    // Authenticates every segment of a container without decompressing it; GCM tags already cover
+    // the header and every byte of the compressed stream
+    static void authenticate(Path inputFile, SecretKey secretKey) throws IOException, GeneralSecurityException {
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(inputFile), CODEC.getBufferSize())) {
+            byte[] header = readHeader(file);
+            try (InputStream decrypted = new AesGcmInputStream(file, secretKey, header)) {
+                decrypted.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+    }
+
+    static byte[] readHeader(InputStream in) throws IOException {
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        if (header.length != HEADER_LENGTH || header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2]) {
+            throw new IOException("Not a ZipGuard " + EXTENSION + " container");
+        }
+        if (header[3] != VERSION) {
+            throw new IOException("Unsupported " + EXTENSION + " container version: " + header[3]);
+        }
+        if ((header[4] != CODEC_HUFFMAN && header[4] != CODEC_BLOCK_STREAM) || header[5] != CIPHER_AES_GCM) {
+            throw new IOException("Unsupported codec or cipher in " + EXTENSION + " container");
+        }
+        return header;
+    }
+
+    // Writes <name>.zg and ZgKey_<name>.pem next to the input file
+    public static void compressAndEncryptFile(Path inputFile) throws Exception {
+        Path parentDir = inputFile.toAbsolutePath().getParent();
+        String fileName = inputFile.getFileName().toString();
+        Path containerFile = parentDir.resolve(fileName + EXTENSION);
+        Path keyFile = parentDir.resolve("ZgKey_" + fileName + ".pem");
+
+        SecretKey secretKey = AesUtils.generateAESKey();
+        compressAndEncrypt(inputFile, containerFile, secretKey);
+        Files.write(keyFile, AesUtils.getPEMAESKey(secretKey).getBytes());
+
+        System.out.println("File compressed and encrypted as: " + containerFile);
+    }
+
+    // Restores <name>.zg as Restored_<name> next to the container
+    public static void decryptAndDecompressFile(Path containerFile, Path keyFile) throws Exception {
+        String fileName = containerFile.getFileName().toString();
+        if (fileName.endsWith(EXTENSION)) {
+            fileName = fileName.substring(0, fileName.length() - EXTENSION.length());
+        }
+        Path restoredFile = containerFile.toAbsolutePath().getParent().resolve("Restored_" + fileName);
+
+        decryptAndDecompress(containerFile, restoredFile, AesUtils.readAESKeyFromFile(keyFile));
+
+        System.out.println("File decrypted and decompressed as: " + restoredFile);
+    }
+}
@@ -0,0 +1,76 @@
+package ZIPGUARD;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import javax.crypto.SecretKey;
+
+/**
+ * Integrity checks that read a file without writing anything. Compressed files with a Checksums
+ * trailer are checked chunk by chunk against their CRC32C values, which runs at I/O speed; compressed
+ * files written without one are decoded into nothing. Encrypted files are checked by authenticating
+ * every AES-GCM segment, which needs the key but no output file.
+ */
+public class VerifyUtils {
+
+    private static final HuffmanCodec DEFAULT_CODEC = new HuffmanCodec();
+
+    public static void verifyFile(Path file) throws IOException, GeneralSecurityException {
+        verifyFile(file, null, DEFAULT_CODEC);
+    }
+
+    // key is the AES SecretKey of segmented AES files and .zg containers, or the RSA PrivateKey of
+    // envelopes, and may be null for compressed files. codec decodes Huffman files that have no
+    // checksum trailer, so it needs the dictionary of files compressed with one.
+    public static void verifyFile(Path file, Key key, HuffmanCodec codec) throws IOException, GeneralSecurityException {
+        try (OperationTimer timer = Metrics.start(Metrics.VERIFY)) {
+            verify(file, key, codec, timer);
+            timer.complete();
+        }
+    }
+
+    private static void verify(Path file, Key key, HuffmanCodec codec, OperationTimer timer)
+            throws IOException, GeneralSecurityException {
+        int magic = HuffmanUtils.readMagic(file);
+        if (magic == AesUtils.STREAM_MAGIC) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                // Counts the bytes it reads itself
+                AesUtils.authenticateParallel(in, requireKey(key, SecretKey.class, "an AES key", file), timer);
+            }
+            return;
+        }
+
+        if (BlockHuffmanCodec.isBlockMagic(magic)) {
+            new BlockHuffmanCodec().verify(file);
+        } else if (HuffmanCodec.isHuffmanMagic(magic) || magic == LzHuffmanCodec.MAGIC || magic == BlockStream.MAGIC) {
+            if (!Checksums.verify(file)) {
+                // Written before checksum trailers, or through a stream method: decoding is the only check
+                try (InputStream in = Files.newInputStream(file)) {
+                    if (magic == LzHuffmanCodec.MAGIC) {
+                        new LzHuffmanCodec().decompress(in, OutputStream.nullOutputStream());
+                    } else if (magic == BlockStream.MAGIC) {
+                        BlockStream.decode(in, OutputStream.nullOutputStream());
+                    } else {
+                        codec.decompress(in, OutputStream.nullOutputStream());
+                    }
+                }
+            }
+        } else if (magic == RsaUtils.ENVELOPE_MAGIC) {
+            RsaUtils.authenticateEnvelope(file, requireKey(key, PrivateKey.class, "an RSA private key", file));
+        } else if (magic >>> 8 == ((PipelineUtils.MAGIC[0] << 16) | (PipelineUtils.MAGIC[1] << 8) | PipelineUtils.MAGIC[2])) {
+            PipelineUtils.authenticate(file, requireKey(key, SecretKey.class, "an AES key", file));
+        } else {
+            throw new IOException("Not a ZipGuard file, or one without integrity data: " + file);
+        }
+        timer.phase("verify");
+        timer.addBytesIn(Files.size(file));
+    }
+
+    private static <K extends Key> K requireKey(Key key, Class<K> type, String description, Path file) throws IOException {
+        if (!type.isInstance(key)) {
+            throw new IOException(file + " is encrypted; verifying it needs " + description);
+        }
+        return type.cast(key);
+    }
+}
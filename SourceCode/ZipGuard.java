@@ -6,6 +6,11 @@ import ZIPGUARD.*;
 
 public class ZipGuard {
     public static void main(String[] args) throws Exception {
+        // With arguments, run as a non-interactive batch command instead of showing the menu
+        if (args.length > 0) {
+            System.exit(BatchCli.run(args, System.out, System.err));
+        }
+
         Scanner scanner = new Scanner(System.in);
         System.out.println("\t\t\t=========================================");
         System.out.println("\t\t\t                 ZIP GUARD               ");
@@ -22,6 +27,8 @@ public class ZipGuard {
         System.out.println("4: Decrypt a file using AES");
         System.out.println("5: Encrypt a file using RSA");
         System.out.println("6: Decrypt a file using RSA");
+        System.out.println("7: Compress and encrypt a file in one pass (.zg)");
+        System.out.println("8: Decrypt and decompress a .zg file");
         System.out.print("Choice: ");
         int ch = scanner.nextInt();
         scanner.nextLine(); // Consume newline after integer input
@@ -34,9 +41,7 @@ public class ZipGuard {
         else if (ch == 2) {
             System.out.print("Enter the compressed file path: ");
             String compressedFilePath = scanner.nextLine();
-            System.out.print("Enter the tree file path: ");
-            String treeFilePath = scanner.nextLine();
-            HuffmanUtils.decompressFile(compressedFilePath, treeFilePath);
+            HuffmanUtils.decompressFile(compressedFilePath);
         }
         else if (ch == 3) {
             AesUtils obj = new AesUtils();
@@ -91,7 +96,13 @@ public class ZipGuard {
             System.out.println("Enter the file path to encrypt:");
             String filePath = scanner.nextLine();
             Path inputFile = Paths.get(filePath);
-            RsaUtils.encryptFile(inputFile);
+            System.out.println("Enter the public key file path (leave blank to generate a new key pair):");
+            String publicKeyPath = scanner.nextLine().trim();
+            if (publicKeyPath.isEmpty()) {
+                RsaUtils.encryptFile(inputFile);
+            } else {
+                RsaUtils.encryptFile(inputFile, Paths.get(publicKeyPath));
+            }
         }
         else if (ch == 6) {
             System.out.println("Enter the file path to decrypt:");
@@ -102,6 +113,18 @@ public class ZipGuard {
             Path keyFile = Paths.get(privateKeyPath);
             RsaUtils.decryptFile(inputFile, keyFile);
         }
+        else if (ch == 7) {
+            System.out.println("Enter the file path to compress and encrypt:");
+            Path inputFile = Paths.get(scanner.nextLine());
+            PipelineUtils.compressAndEncryptFile(inputFile);
+        }
+        else if (ch == 8) {
+            System.out.println("Enter the .zg file path:");
+            Path inputFile = Paths.get(scanner.nextLine());
+            System.out.println("Enter the key file path:");
+            Path keyFile = Paths.get(scanner.nextLine());
+            PipelineUtils.decryptAndDecompressFile(inputFile, keyFile);
+        }
         else {
             System.out.println("INVALID");
         }
@@ -0,0 +1,47 @@
+package ZIPGUARD.bench;
+
+import ZIPGUARD.AesUtils;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.*;
+import org.openjdk.jmh.annotations.*;
+
+// In-memory AES-GCM encryption and decryption of the segmented format
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AesBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    @Param({"TEXT", "RANDOM"})
+    public InputProfile profile;
+
+    private SecretKey secretKey;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        secretKey = keyGenerator.generateKey();
+        plaintext = profile.generate(size);
+        ciphertext = AesUtils.encryptData(plaintext, secretKey);
+    }
+
+    @Benchmark
+    public byte[] encryptData(ByteCounter counter) throws Exception {
+        counter.bytes += size;
+        return AesUtils.encryptData(plaintext, secretKey);
+    }
+
+    @Benchmark
+    public byte[] decryptData(ByteCounter counter) throws Exception {
+        counter.bytes += size;
+        return AesUtils.decryptData(ciphertext, secretKey);
+    }
+}
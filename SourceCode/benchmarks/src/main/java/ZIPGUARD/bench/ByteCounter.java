@@ -0,0 +1,15 @@
+package ZIPGUARD.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+// Reported by JMH as a rate next to ops/s: input bytes processed per second
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+}
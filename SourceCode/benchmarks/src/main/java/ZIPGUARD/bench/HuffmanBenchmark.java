@@ -0,0 +1,77 @@
+package ZIPGUARD.bench;
+
+import ZIPGUARD.*;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// File-to-file Huffman compression and decompression through HuffmanUtils and the parallel block codec
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HuffmanBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    @Param({"TEXT", "RANDOM", "SKEWED"})
+    public InputProfile profile;
+
+    private Path directory;
+    private Path input;
+    private Path compressed;
+    private Path blockCompressed;
+    private Path output;
+    private BlockHuffmanCodec blockCodec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("zipguard-bench");
+        input = directory.resolve("input.txt");
+        compressed = directory.resolve("input_compressed.dat");
+        blockCompressed = directory.resolve("block.dat");
+        output = directory.resolve("output.bin");
+        Files.write(input, profile.generate(size));
+
+        blockCodec = new BlockHuffmanCodec();
+        HuffmanUtils.compressFile(input.toString());
+        blockCodec.compress(input, blockCompressed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Path path : new Path[]{input, compressed, blockCompressed, output,
+                directory.resolve("input_decompressed.txt")}) {
+            Files.deleteIfExists(path);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void compressFile(ByteCounter counter) throws IOException {
+        HuffmanUtils.compressFile(input.toString());
+        counter.bytes += size;
+    }
+
+    @Benchmark
+    public void decompressFile(ByteCounter counter) throws IOException {
+        HuffmanUtils.decompressFile(compressed.toString());
+        counter.bytes += size;
+    }
+
+    @Benchmark
+    public void compressBlocks(ByteCounter counter) throws IOException {
+        blockCodec.compress(input, output);
+        counter.bytes += size;
+    }
+
+    @Benchmark
+    public void decompressBlocks(ByteCounter counter) throws IOException {
+        blockCodec.decompress(blockCompressed, output);
+        counter.bytes += size;
+    }
+}
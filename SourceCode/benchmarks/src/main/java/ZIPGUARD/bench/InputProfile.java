@@ -0,0 +1,55 @@
+package ZIPGUARD.bench;
+
+import java.util.Random;
+
+// Synthetic inputs with different entropy, generated from a fixed seed so runs are comparable
+public enum InputProfile {
+
+    // English-like words and punctuation: the typical log or document case
+    TEXT {
+        @Override
+        byte[] generate(int size, Random random) {
+            String[] words = {"the", "of", "and", "to", "in", "is", "that", "for", "it", "as", "was", "with",
+                    "be", "by", "on", "not", "he", "this", "are", "or", "his", "from", "at", "which", "but",
+                    "request", "response", "error", "user", "file", "time", "2024-01-01T00:00:00Z", "INFO", "WARN"};
+            StringBuilder text = new StringBuilder(size + 32);
+            while (text.length() < size) {
+                text.append(words[random.nextInt(words.length)]);
+                text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+            }
+            return text.substring(0, size).getBytes();
+        }
+    },
+
+    // Uniformly random bytes: incompressible, like already-compressed or encrypted data
+    RANDOM {
+        @Override
+        byte[] generate(int size, Random random) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            return data;
+        }
+    },
+
+    // Geometric distribution over a few symbols: highly compressible
+    SKEWED {
+        @Override
+        byte[] generate(int size, Random random) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                int symbol = 0;
+                while (symbol < 40 && random.nextInt(3) == 0) {
+                    symbol++;
+                }
+                data[i] = (byte) ('a' + symbol);
+            }
+            return data;
+        }
+    };
+
+    abstract byte[] generate(int size, Random random);
+
+    public byte[] generate(int size) {
+        return generate(size, new Random(42));
+    }
+}
@@ -0,0 +1,95 @@
+package ZIPGUARD.bench;
+
+import ZIPGUARD.LzHuffmanCodec;
+import java.io.*;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.*;
+
+// LZ77 + Huffman compression against java.util.zip.Deflater at the same level. Both write to a
+// discarding stream; the compression ratio of each is printed once per trial.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LzBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    @Param({"TEXT", "RANDOM", "SKEWED"})
+    public InputProfile profile;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private Path directory;
+    private Path input;
+    private Path compressed;
+    private Path output;
+    private byte[] data;
+    private byte[] deflateBuffer;
+    private LzHuffmanCodec codec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("zipguard-bench");
+        input = directory.resolve("input.txt");
+        compressed = directory.resolve("input.zgl");
+        output = directory.resolve("output.bin");
+        data = profile.generate(size);
+        Files.write(input, data);
+        deflateBuffer = new byte[64 * 1024];
+
+        codec = new LzHuffmanCodec(level);
+        codec.compress(input, compressed);
+        long deflated = deflate();
+        System.out.printf(Locale.ROOT, "%nratio at level %d: lz %.3f, deflate %.3f%n",
+                level, (double) size / Files.size(compressed), (double) size / deflated);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Path path : new Path[]{input, compressed, output}) {
+            Files.deleteIfExists(path);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void compressLz(ByteCounter counter) throws IOException {
+        codec.compress(input, OutputStream.nullOutputStream());
+        counter.bytes += size;
+    }
+
+    @Benchmark
+    public void decompressLz(ByteCounter counter) throws IOException {
+        codec.decompress(compressed, output);
+        counter.bytes += size;
+    }
+
+    @Benchmark
+    public long compressDeflater(ByteCounter counter) {
+        counter.bytes += size;
+        return deflate();
+    }
+
+    private long deflate() {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            long length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(deflateBuffer);
+            }
+            return length;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ZIPGUARD.bench;
+
+import ZIPGUARD.RsaUtils;
+import java.nio.file.*;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// RSA key generation, raw RSA on a single block, and the RSA + AES envelope on a file
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RsaBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private KeyPair keyPair;
+    private byte[] block;
+    private byte[] encryptedBlock;
+    private Path directory;
+    private Path input;
+    private Path envelope;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        keyPair = RsaUtils.generateKeyPair();
+        block = InputProfile.TEXT.generate(190); // Fits in one 2048-bit RSA block
+        encryptedBlock = RsaUtils.encryptData(block, keyPair.getPublic());
+
+        directory = Files.createTempDirectory("zipguard-bench");
+        input = directory.resolve("input.txt");
+        envelope = directory.resolve("envelope.bin");
+        output = directory.resolve("output.txt");
+        Files.write(input, InputProfile.TEXT.generate(size));
+        RsaUtils.encryptEnvelope(input, envelope, keyPair.getPublic());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Path path : new Path[]{input, envelope, output}) {
+            Files.deleteIfExists(path);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() throws Exception {
+        return RsaUtils.generateKeyPair();
+    }
+
+    @Benchmark
+    public byte[] encryptBlock() throws Exception {
+        return RsaUtils.encryptData(block, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] decryptBlock() throws Exception {
+        return RsaUtils.decryptData(encryptedBlock, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public void encryptEnvelope(ByteCounter counter) throws Exception {
+        RsaUtils.encryptEnvelope(input, output, keyPair.getPublic());
+        counter.bytes += size;
+    }
+
+    @Benchmark
+    public void decryptEnvelope(ByteCounter counter) throws Exception {
+        RsaUtils.decryptEnvelope(envelope, output, keyPair.getPrivate());
+        counter.bytes += size;
+    }
+}
@@ -0,0 +1,312 @@
+package ZIPGUARD;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips through the paths that share state between threads: CipherCache's per-thread ciphers,
+ * BufferPool's buffers and the worker pool of the block codec and the parallel AES file path. Many
+ * threads are released at once, each with input of its own, and every result is compared byte for
+ * byte, so a buffer handed to two threads or a cipher used by two at once shows up as a mismatch or
+ * a failed tag instead of passing by luck. Compressed output must also equal what a single thread
+ * writes for the same input, since a round trip alone passes when state leaks into both directions.
+ */
+class ConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 8;
+    private static final String[] WORDS = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+            "segment", "block", "cipher", "buffer", "\n"};
+
+    private static SecretKey secretKey;
+    private static ForkJoinPool pool;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        secretKey = AesUtils.generateAESKey();
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void huffmanCodecSharedAcrossThreads() throws Exception {
+        HuffmanCodec codec = new HuffmanCodec();
+        Compressor compressor = (thread, round, data) -> {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            codec.compress(ByteBuffer.wrap(data), compressed);
+            return compressed.toByteArray();
+        };
+        byte[][][] expected = singleThreaded(compressor);
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            byte[] compressed = compressor.compress(thread, round, data);
+            assertArrayEquals(expected[thread][round], compressed, "compressed by thread " + thread + ", round " + round);
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            codec.decompress(new ByteArrayInputStream(compressed), restored);
+            assertArrayEquals(data, restored.toByteArray(), "thread " + thread + ", round " + round);
+        });
+    }
+
+    @Test
+    void lzCodecSharedAcrossThreads() throws Exception {
+        LzHuffmanCodec codec = new LzHuffmanCodec(6, 16);
+        Compressor compressor = (thread, round, data) -> {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            codec.compress(write(thread, round, data), compressed);
+            return compressed.toByteArray();
+        };
+        byte[][][] expected = singleThreaded(compressor);
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            byte[] compressed = compressor.compress(thread, round, data);
+            assertArrayEquals(expected[thread][round], compressed, "compressed by thread " + thread + ", round " + round);
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            codec.decompress(new ByteArrayInputStream(compressed), restored);
+            assertArrayEquals(data, restored.toByteArray(), "thread " + thread + ", round " + round);
+        });
+    }
+
+    // Small blocks, so every file is several blocks coded on the shared pool at once. The reference
+    // is coded on a pool of one thread, so block order cannot depend on scheduling.
+    @Test
+    void blockCodecSharedPool() throws Exception {
+        BlockHuffmanCodec codec = new BlockHuffmanCodec(16 * 1024, pool);
+        ForkJoinPool singlePool = new ForkJoinPool(1);
+        byte[][][] expected;
+        try {
+            BlockHuffmanCodec single = new BlockHuffmanCodec(16 * 1024, singlePool);
+            expected = singleThreaded((thread, round, data) -> {
+                Path file = write(thread, round, data);
+                Path compressed = file.resolveSibling(file.getFileName() + ".zgb");
+                single.compress(file, compressed);
+                return Files.readAllBytes(compressed);
+            });
+        } finally {
+            singlePool.shutdownNow();
+        }
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            Path file = write(thread, round, data);
+            Path compressed = file.resolveSibling(file.getFileName() + ".zgb");
+            Path restored = file.resolveSibling(file.getFileName() + ".out");
+            codec.compress(file, compressed);
+            assertArrayEquals(expected[thread][round], Files.readAllBytes(compressed),
+                    "compressed by thread " + thread + ", round " + round);
+            codec.decompress(compressed, restored);
+            assertArrayEquals(data, Files.readAllBytes(restored), "thread " + thread + ", round " + round);
+
+            int offset = data.length / 3;
+            int length = Math.min(40_000, data.length - offset);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), codec.readRange(compressed, offset, length),
+                    "range of thread " + thread + ", round " + round);
+        });
+    }
+
+    @Test
+    void aesInMemoryAndStreams() throws Exception {
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            byte[] encrypted = AesUtils.encryptData(data, secretKey);
+            assertArrayEquals(data, AesUtils.decryptData(encrypted, secretKey), "data of thread " + thread + ", round " + round);
+
+            // A segment size per thread, so the pool serves many buffer sizes at once
+            int segmentSize = 4096 + 512 * thread;
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            AesUtils.encryptStream(Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(sealed),
+                    secretKey, segmentSize);
+            ByteArrayOutputStream opened = new ByteArrayOutputStream();
+            AesUtils.decryptStream(Channels.newChannel(new ByteArrayInputStream(sealed.toByteArray())),
+                    Channels.newChannel(opened), secretKey);
+            assertArrayEquals(data, opened.toByteArray(), "stream of thread " + thread + ", round " + round);
+        });
+    }
+
+    @Test
+    void aesParallelFilePathSharedPool() throws Exception {
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            Path file = write(thread, round, data);
+            Path encrypted = file.resolveSibling(file.getFileName() + ".aes");
+            Path decrypted = file.resolveSibling(file.getFileName() + ".out");
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(encrypted, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                AesUtils.encryptParallel(in, out, secretKey, 8192, pool);
+            }
+            try (FileChannel in = FileChannel.open(encrypted, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(decrypted, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                AesUtils.decryptParallel(in, out, secretKey, pool);
+            }
+            assertArrayEquals(data, Files.readAllBytes(decrypted), "thread " + thread + ", round " + round);
+        });
+    }
+
+    @Test
+    void pipelineContainers() throws Exception {
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            ByteArrayOutputStream container = new ByteArrayOutputStream();
+            PipelineUtils.compressAndEncrypt(ByteBuffer.wrap(data), container, secretKey);
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            PipelineUtils.decryptAndDecompress(new ByteArrayInputStream(container.toByteArray()), restored, secretKey);
+            assertArrayEquals(data, restored.toByteArray(), "thread " + thread + ", round " + round);
+        });
+    }
+
+    // A buffer handed to two threads at once gets overwritten by the other's mark before it is checked
+    @Test
+    void bufferPoolNeverSharesABuffer() throws Exception {
+        int[] capacities = {1024, 65536, 65536 + AesUtils.GCM_TAG_LENGTH};
+        hammer((thread, round) -> {
+            for (int i = 0; i < 50; i++) {
+                int capacity = capacities[(thread + i) % capacities.length];
+                ByteBuffer direct = BufferPool.direct(capacity);
+                byte[] array = BufferPool.array(capacity);
+                assertEquals(capacity, direct.remaining());
+                assertEquals(capacity, array.length);
+                byte mark = (byte) (thread * 31 + i);
+                for (int j = 0; j < capacity; j++) {
+                    direct.put(j, mark);
+                }
+                Arrays.fill(array, mark);
+                Thread.yield();
+                for (int j = 0; j < capacity; j++) {
+                    assertEquals(mark, direct.get(j), "direct buffer shared between threads");
+                    assertEquals(mark, array[j], "array shared between threads");
+                }
+                BufferPool.release(direct);
+                BufferPool.release(array);
+            }
+        });
+    }
+
+    // Every path above at once, so the ciphers and pooled buffers of different callers interleave
+    @Test
+    void allPathsAtOnce() throws Exception {
+        HuffmanCodec huffman = new HuffmanCodec();
+        BlockHuffmanCodec block = new BlockHuffmanCodec(16 * 1024, pool);
+        hammer((thread, round) -> {
+            byte[] data = input(thread, round);
+            byte[] restored;
+            switch ((thread + round) % 4) {
+                case 0: {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    huffman.compress(ByteBuffer.wrap(data), compressed);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    huffman.decompress(new ByteArrayInputStream(compressed.toByteArray()), out);
+                    restored = out.toByteArray();
+                    break;
+                }
+                case 1: {
+                    Path file = write(thread, round, data);
+                    Path compressed = file.resolveSibling(file.getFileName() + ".zgb");
+                    block.compress(file, compressed);
+                    restored = block.readRange(compressed, 0, data.length);
+                    break;
+                }
+                case 2:
+                    restored = AesUtils.decryptData(AesUtils.encryptData(data, secretKey), secretKey);
+                    break;
+                default: {
+                    ByteArrayOutputStream container = new ByteArrayOutputStream();
+                    PipelineUtils.compressAndEncrypt(ByteBuffer.wrap(data), container, secretKey);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    PipelineUtils.decryptAndDecompress(new ByteArrayInputStream(container.toByteArray()), out, secretKey);
+                    restored = out.toByteArray();
+                    break;
+                }
+            }
+            assertArrayEquals(data, restored, "thread " + thread + ", round " + round);
+        });
+    }
+
+    private interface RoundTrip {
+        void run(int thread, int round) throws Exception;
+    }
+
+    private interface Compressor {
+        byte[] compress(int thread, int round, byte[] data) throws Exception;
+    }
+
+    // What compressor writes for every thread's and round's input when this thread runs them one by one
+    private static byte[][][] singleThreaded(Compressor compressor) throws Exception {
+        byte[][][] compressed = new byte[THREADS][ROUNDS][];
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int round = 0; round < ROUNDS; round++) {
+                compressed[thread][round] = compressor.compress(thread, round, input(thread, round));
+            }
+        }
+        return compressed;
+    }
+
+    // Runs every round of task on THREADS threads released together; fails with the first failure
+    private static void hammer(RoundTrip task) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                results.add(threads.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        task.run(thread, round);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get(5, TimeUnit.MINUTES);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AssertionError) {
+                        throw (AssertionError) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    // Input of its own for every thread and round: random bytes or word soup (which LZ and Huffman
+    // shrink), with lengths that include empty input and the edges of 64 KB segments
+    private static byte[] input(int thread, int round) {
+        Random random = new Random(thread * 1000L + round);
+        int[] edges = {0, 1, 65535, 65536, 65537, 3 * 65536};
+        int length = (thread + round) % 3 == 0 ? edges[(thread + round) % edges.length] : random.nextInt(300_000);
+        byte[] data = new byte[length];
+        if (thread % 2 == 0) {
+            random.nextBytes(data);
+            return data;
+        }
+        int filled = 0;
+        while (filled < length) {
+            byte[] word = (WORDS[random.nextInt(WORDS.length)] + ' ').getBytes();
+            int n = Math.min(word.length, length - filled);
+            System.arraycopy(word, 0, data, filled, n);
+            filled += n;
+        }
+        return data;
+    }
+
+    private Path write(int thread, int round, byte[] data) throws IOException {
+        return Files.write(directory.resolve("input-" + thread + "-" + round), data);
+    }
+}